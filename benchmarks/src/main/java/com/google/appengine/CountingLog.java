@@ -0,0 +1,103 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A Maven log counting the messages instead of printing them, so that the benchmarks measure the
+ * code logging rather than the console.
+ */
+public class CountingLog implements Log {
+
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * @return the number of messages logged.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  @Override
+  public boolean isDebugEnabled() {
+    return false;
+  }
+
+  @Override
+  public void debug(CharSequence content) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void debug(CharSequence content, Throwable error) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void debug(Throwable error) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public boolean isInfoEnabled() {
+    return true;
+  }
+
+  @Override
+  public void info(CharSequence content) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void info(CharSequence content, Throwable error) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void info(Throwable error) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public boolean isWarnEnabled() {
+    return true;
+  }
+
+  @Override
+  public void warn(CharSequence content) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void warn(CharSequence content, Throwable error) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void warn(Throwable error) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public boolean isErrorEnabled() {
+    return true;
+  }
+
+  @Override
+  public void error(CharSequence content) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void error(CharSequence content, Throwable error) {
+    count.incrementAndGet();
+  }
+
+  @Override
+  public void error(Throwable error) {
+    count.incrementAndGet();
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the data the benchmarks run on, with a fixed seed so that every run sees the same
+ * files.
+ */
+public final class SyntheticFiles {
+
+  private static final long SEED = 20160815L;
+
+  private SyntheticFiles() {
+  }
+
+  /**
+   * Creates a new empty temporary directory.
+   */
+  public static File createTempDir(String prefix) throws IOException {
+    return java.nio.file.Files.createTempDirectory(prefix).toFile();
+  }
+
+  /**
+   * Writes a tree of files looking like an exploded application: a few large jars in
+   * WEB-INF/lib and many small classes and static files.
+   *
+   * @param files the number of files to write.
+   * @param largeFiles how many of the files are large ones.
+   * @param largeSize the size of the large files, in bytes.
+   */
+  public static void writeTree(File root, int files, int largeFiles, int largeSize)
+      throws IOException {
+    Random random = new Random(SEED);
+    for (int i = 0; i < files; i++) {
+      File file;
+      int size;
+      if (i < largeFiles) {
+        file = new File(root, "WEB-INF/lib/library-" + i + ".jar");
+        size = largeSize;
+      } else if (i % 3 == 0) {
+        file = new File(root, "static/dir" + (i % 17) + "/file" + i + ".css");
+        size = 512 + random.nextInt(8192);
+      } else {
+        file = new File(root,
+            "WEB-INF/classes/com/example/p" + (i % 31) + "/Class" + i + ".class");
+        size = 512 + random.nextInt(4096);
+      }
+      writeRandom(file, size, random);
+    }
+  }
+
+  /**
+   * Writes a zip archive of the given number of entries, spread over directories, half of them
+   * compressible text and half of them random bytes.
+   */
+  public static void writeZip(File zip, int entries, int entrySize) throws IOException {
+    Random random = new Random(SEED);
+    byte[] data = new byte[entrySize];
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      for (int i = 0; i < entries; i++) {
+        out.putNextEntry(new ZipEntry("root/dir" + (i % 23) + "/sub" + (i % 7) + "/entry" + i
+            + (i % 2 == 0 ? ".txt" : ".bin")));
+        if (i % 2 == 0) {
+          for (int j = 0; j < data.length; j++) {
+            data[j] = (byte) ('a' + (j * 31 + i) % 26);
+          }
+        } else {
+          random.nextBytes(data);
+        }
+        out.write(data);
+        out.closeEntry();
+      }
+    }
+  }
+
+  /**
+   * Deletes a directory and everything under it.
+   */
+  public static void delete(File root) throws IOException {
+    if (!root.exists()) {
+      return;
+    }
+    java.nio.file.Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+          throws IOException {
+        java.nio.file.Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        java.nio.file.Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private static void writeRandom(File file, int size, Random random) throws IOException {
+    File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create " + parent);
+    }
+    byte[] data = new byte[size];
+    random.nextBytes(data);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+}
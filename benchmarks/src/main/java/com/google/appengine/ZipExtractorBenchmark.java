@@ -0,0 +1,82 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ZipExtractor} called directly on a synthetic zip shaped like the App Engine SDK archive
+ * that {@link SdkResolver#getSdk} unpacks: many entries over a deep tree of directories. The SDK
+ * resolution, checksum and marker handling around it are not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ZipExtractorBenchmark {
+
+  @Param({"2000"})
+  public int entries;
+
+  @Param({"16384"})
+  public int entrySize;
+
+  /** Worker threads of the extractor, 0 for one per processor. */
+  @Param({"1", "0"})
+  public int threads;
+
+  private File work;
+  private File destination;
+  private ZipFile archive;
+  private List<? extends ZipEntry> zipEntries;
+
+  @Setup(Level.Trial)
+  public void createArchive() throws IOException {
+    work = SyntheticFiles.createTempDir("zip-extractor-benchmark");
+    File zip = new File(work, "sdk.zip");
+    SyntheticFiles.writeZip(zip, entries, entrySize);
+    archive = new ZipFile(zip);
+    zipEntries = Collections.list(archive.entries());
+  }
+
+  @Setup(Level.Iteration)
+  public void cleanDestination() throws IOException {
+    destination = new File(work, "extracted");
+    SyntheticFiles.delete(destination);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteArchive() throws IOException {
+    archive.close();
+    SyntheticFiles.delete(work);
+  }
+
+  @Benchmark
+  public long extract() throws IOException {
+    ZipExtractor extractor = new ZipExtractor(threads, null);
+    extractor.extract(archive, zipEntries, destination);
+    return extractor.getByteCount();
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.endpoints;
+
+import com.google.appengine.SyntheticFiles;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of a generated client library zip into a Maven project by
+ * {@code EndpointsGetClientLib.unjarMavenProject}, private and called by reflection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class UnjarBenchmark {
+
+  /** Generated sources in the client library. */
+  @Param({"300"})
+  public int sources;
+
+  @Param({"8192"})
+  public int sourceSize;
+
+  private File work;
+  private File zip;
+  private File destination;
+  private EndpointsGetClientLib mojo;
+  private Method unjar;
+
+  @Setup(Level.Trial)
+  public void createClientLibrary() throws IOException, ReflectiveOperationException {
+    work = SyntheticFiles.createTempDir("unjar-benchmark");
+    zip = new File(work, "myapi-v1-java.zip");
+    char[] source = new char[sourceSize];
+    Arrays.fill(source, ' ');
+    for (int i = 0; i < source.length; i += 80) {
+      source[i] = '\n';
+    }
+    byte[] content = new String(source).getBytes("UTF-8");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("myapi/"));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("myapi/pom.xml"));
+      out.write(("<project><modelVersion>4.0.0</modelVersion><groupId>com.example</groupId>"
+          + "<artifactId>myapi</artifactId><version>v1</version></project>").getBytes("UTF-8"));
+      out.closeEntry();
+      for (int i = 0; i < sources; i++) {
+        out.putNextEntry(new ZipEntry("myapi/src/main/java/com/example/myapi/model/Model" + i
+            + ".java"));
+        out.write(content);
+        out.closeEntry();
+      }
+    }
+    mojo = new EndpointsGetClientLib();
+    unjar = EndpointsGetClientLib.class.getDeclaredMethod("unjarMavenProject", File.class,
+        File.class);
+    unjar.setAccessible(true);
+  }
+
+  @Setup(Level.Iteration)
+  public void cleanDestination() throws IOException {
+    destination = new File(work, "projects");
+    SyntheticFiles.delete(destination);
+    destination.mkdirs();
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteClientLibrary() throws IOException {
+    SyntheticFiles.delete(work);
+  }
+
+  @Benchmark
+  public Object unjar() throws ReflectiveOperationException {
+    return unjar.invoke(mojo, zip, destination);
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.endpoints;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import com.google.appengine.CountingLog;
+import com.google.appengine.SyntheticFiles;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updating the services of the SystemServiceServlet in web.xml, through
+ * {@link WebXmlProcessing#getAPIServicesClasses()} with the service classes given by the user so
+ * that no class is scanned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WebXmlBenchmark {
+
+  /** Servlets of the web.xml besides the SystemServiceServlet. */
+  @Param({"10", "500"})
+  public int servlets;
+
+  @Param({"20"})
+  public int services;
+
+  private File work;
+  private WebXmlProcessing processing;
+
+  @Setup(Level.Trial)
+  public void createWebXml() throws IOException {
+    work = SyntheticFiles.createTempDir("web-xml-benchmark");
+    File webInf = new File(work, "src/WEB-INF");
+    webInf.mkdirs();
+    StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+        + "<web-app xmlns=\"http://java.sun.com/xml/ns/javaee\" version=\"2.5\">\n");
+    for (int i = 0; i < servlets; i++) {
+      xml.append(" <servlet>\n  <servlet-name>Servlet").append(i)
+          .append("</servlet-name>\n  <servlet-class>com.example.Servlet").append(i)
+          .append("</servlet-class>\n </servlet>\n <servlet-mapping>\n  <servlet-name>Servlet")
+          .append(i).append("</servlet-name>\n  <url-pattern>/servlet").append(i)
+          .append("</url-pattern>\n </servlet-mapping>\n");
+    }
+    xml.append("</web-app>\n");
+    File webXml = new File(webInf, "web.xml");
+    Files.write(xml, webXml, UTF_8);
+    Files.write("<appengine-web-app xmlns=\"http://appengine.google.com/ns/1.0\">\n"
+        + " <threadsafe>true</threadsafe>\n</appengine-web-app>\n",
+        new File(webInf, "appengine-web.xml"), UTF_8);
+
+    StringBuilder classes = new StringBuilder();
+    for (int i = 0; i < services; i++) {
+      classes.append(i == 0 ? "" : ",").append("com.example.api.Service").append(i);
+    }
+    processing = new WebXmlProcessing(new CountingLog(), webXml.getPath(),
+        new File(work, "generated").getPath(), null, classes.toString());
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteWebXml() throws IOException {
+    SyntheticFiles.delete(work);
+  }
+
+  @Benchmark
+  public List<String> updateWebXml() {
+    return processing.getAPIServicesClasses();
+  }
+}
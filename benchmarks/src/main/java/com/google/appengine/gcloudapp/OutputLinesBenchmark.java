@@ -0,0 +1,156 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import com.google.appengine.CountingLog;
+import com.google.appengine.SyntheticFiles;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The handling of the output lines of the processes started by {@code startCommand}: matching
+ * each line against the readiness, error and suppress patterns, and pumping a whole stream
+ * through the bounded buffer to the Maven log or to a log file.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OutputLinesBenchmark {
+
+  private static final String[] SAMPLE_LINES = {
+      "INFO     2016-08-15 10:00:00,000 devappserver2.py:769] Skipping SDK update check.",
+      "INFO     2016-08-15 10:00:00,100 api_server.py:205] Starting API server at: "
+          + "http://localhost:45678",
+      "INFO     2016-08-15 10:00:01,234 module.py:1730] module default is running at: "
+          + "http://localhost:8080",
+      "[INFO] GCLOUD: 127.0.0.1 - - [15/Aug/2016:10:00:02 +0000] \"GET /_ah/health?"
+          + "IsLastSuccessful=yes HTTP/1.1\" 200 2",
+      "Aug 15, 2016 10:00:03 AM com.example.Servlet doGet: handling request 42",
+      "WARNING  2016-08-15 10:00:04,567 urlfetch_stub.py:550] Stripped prohibited headers",
+      "ERROR    2016-08-15 10:00:05,678 module.py:812] Traceback (most recent call last):"
+  };
+
+  private static final String[] READY_PATTERNS =
+      {"Dev App Server is now running", "is running at: "};
+  private static final String[] ERROR_PATTERNS = {"Traceback", "Exception in thread"};
+  private static final String[] SUPPRESS_PATTERNS =
+      {"GET /_ah/health?IsLastSuccessful=yes HTTP/1.1\" 200 2"};
+
+  @Param({"100000"})
+  public int lines;
+
+  /** Where the lines go: the Maven log, or a log file with periodic summaries. */
+  @Param({"log", "file"})
+  public String sink;
+
+  @Param({"DROP", "SPILL"})
+  public String policy;
+
+  private byte[] output;
+  private String[] text;
+  private MultiPatternMatcher matcher;
+  private File work;
+
+  @Setup(Level.Trial)
+  public void createOutput() throws IOException {
+    text = new String[lines];
+    StringBuilder all = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      text[i] = SAMPLE_LINES[i % SAMPLE_LINES.length];
+      all.append(text[i]).append('\n');
+    }
+    output = all.toString().getBytes(UTF_8);
+    matcher = new MultiPatternMatcher.Builder()
+        .addAll(Arrays.asList(READY_PATTERNS), LogPump.READY)
+        .addAll(Arrays.asList(ERROR_PATTERNS), LogPump.ERROR)
+        .addAll(Arrays.asList(SUPPRESS_PATTERNS), LogPump.SUPPRESS)
+        .build();
+    work = SyntheticFiles.createTempDir("output-lines-benchmark");
+  }
+
+  @Setup(Level.Iteration)
+  public void cleanFiles() throws IOException {
+    java.nio.file.Files.deleteIfExists(new File(work, "spill.log").toPath());
+    java.nio.file.Files.deleteIfExists(new File(work, "output.log").toPath());
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteOutput() throws IOException {
+    SyntheticFiles.delete(work);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void match(Blackhole blackhole) {
+    for (String line : text) {
+      blackhole.consume(matcher.match(line));
+    }
+  }
+
+  /**
+   * The same patterns looked for with one String.contains call per pattern, as each line was
+   * checked before the multi-pattern matcher, for comparison with {@link #match}.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void matchContains(Blackhole blackhole) {
+    for (String line : text) {
+      int kinds = 0;
+      for (String pattern : READY_PATTERNS) {
+        if (line.contains(pattern)) {
+          kinds |= LogPump.READY;
+        }
+      }
+      for (String pattern : ERROR_PATTERNS) {
+        if (line.contains(pattern)) {
+          kinds |= LogPump.ERROR;
+        }
+      }
+      for (String pattern : SUPPRESS_PATTERNS) {
+        if (line.contains(pattern)) {
+          kinds |= LogPump.SUPPRESS;
+        }
+      }
+      blackhole.consume(kinds);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public long pump() throws IOException, InterruptedException {
+    CountingLog log = new CountingLog();
+    LogPump pump = new LogPump(log, "benchmark", 10000, LogPump.OverflowPolicy.valueOf(policy),
+        new File(work, "spill.log")).setMatcher(matcher);
+    if (sink.equals("file")) {
+      pump.setFile(new RotatingLogFile(new File(work, "output.log"), 64L * 1024 * 1024,
+          60L * 60 * 1000, 2, false, "benchmark"), 10000);
+    }
+    pump.pump(new ByteArrayInputStream(output), false);
+    pump.close();
+    return log.getCount() + pump.getLinesRead();
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import com.google.appengine.SyntheticFiles;
+import com.google.common.base.Predicates;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The staging path of {@code executeAppCfgStagingCommand}: scanning the exploded application
+ * against the manifest of the previous staging, and putting the files in the staging directory by
+ * copying or hard linking them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StagingBenchmark {
+
+  private static final String CONFIG = "benchmark";
+
+  @Param({"3000"})
+  public int files;
+
+  /** Number of large library jars among the files. */
+  @Param({"20"})
+  public int largeFiles;
+
+  @Param({"4194304"})
+  public int largeSize;
+
+  private File work;
+  private File appDir;
+  private File stagingDir;
+  private StagingManifest previous;
+
+  @Setup(Level.Trial)
+  public void createApplication() throws IOException {
+    work = SyntheticFiles.createTempDir("staging-benchmark");
+    appDir = new File(work, "app");
+    SyntheticFiles.writeTree(appDir, files, largeFiles, largeSize);
+    previous = StagingManifest.scan(appDir, CONFIG, null, Predicates.<String>alwaysFalse());
+  }
+
+  @Setup(Level.Iteration)
+  public void cleanStagingDirectory() throws IOException {
+    stagingDir = new File(work, "staging");
+    SyntheticFiles.delete(stagingDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteApplication() throws IOException {
+    SyntheticFiles.delete(work);
+  }
+
+  /**
+   * First staging: every file is hashed.
+   */
+  @Benchmark
+  public StagingManifest scanCold() throws IOException {
+    return StagingManifest.scan(appDir, CONFIG, null, Predicates.<String>alwaysFalse());
+  }
+
+  /**
+   * Staging again without any change: only the file attributes are read.
+   */
+  @Benchmark
+  public StagingManifest.Delta scanWarm() throws IOException {
+    StagingManifest current =
+        StagingManifest.scan(appDir, CONFIG, previous, Predicates.<String>alwaysFalse());
+    return previous.diff(current);
+  }
+
+  @Benchmark
+  public int placeCopy() throws IOException {
+    return place(FileLinker.Mode.COPY);
+  }
+
+  @Benchmark
+  public int placeLink() throws IOException {
+    return place(FileLinker.Mode.LINK);
+  }
+
+  private int place(FileLinker.Mode mode) throws IOException {
+    int linked = 0;
+    for (String path : previous.getPaths()) {
+      if (FileLinker.place(new File(appDir, path), new File(stagingDir, path), mode)) {
+        linked++;
+      }
+    }
+    return linked;
+  }
+}
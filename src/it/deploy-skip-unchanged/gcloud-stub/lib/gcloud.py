@@ -0,0 +1,15 @@
+# Copyright 2016 Google Inc. All Rights Reserved.
+#
+# Stand-in for the Cloud SDK gcloud command: appends its arguments to calls.txt in the project
+# directory, and fails the first deploy of the version named fail.
+import os
+import sys
+
+project = os.path.dirname(os.path.dirname(os.path.dirname(os.path.abspath(__file__))))
+arguments = " ".join(sys.argv[1:])
+with open(os.path.join(project, "calls.txt"), "a") as calls:
+  calls.write(arguments + "\n")
+failed = os.path.join(project, "failed-once")
+if "--version=fail" in arguments and not os.path.exists(failed):
+  open(failed, "w").close()
+  sys.exit(3)
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Wall time, bytes read and written and files touched by each phase of a plugin execution, such
+ * as resolving the SDK, staging or running gcloud. Phases may overlap and run on several threads.
+ */
+public class BuildMetrics {
+
+  /**
+   * One timed phase, ended by {@link #close()}.
+   */
+  public static class Phase implements AutoCloseable {
+
+    private final String name;
+    private final long start;
+    private volatile long end;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    Phase(String name, long start) {
+      this.name = name;
+      this.start = start;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the wall time of the phase so far, or until it ended.
+     */
+    public long getMillis() {
+      return (end != 0 ? end : System.currentTimeMillis()) - start;
+    }
+
+    public Phase addFiles(long count) {
+      files.addAndGet(count);
+      return this;
+    }
+
+    public Phase addBytesRead(long count) {
+      bytesRead.addAndGet(count);
+      return this;
+    }
+
+    public Phase addBytesWritten(long count) {
+      bytesWritten.addAndGet(count);
+      return this;
+    }
+
+    void end(long time) {
+      if (end == 0) {
+        end = time;
+      }
+    }
+
+    /**
+     * Ends the phase, only the first call counts.
+     */
+    @Override
+    public void close() {
+      end(System.currentTimeMillis());
+    }
+  }
+
+  private final long start = System.currentTimeMillis();
+  private final List<Phase> phases = new ArrayList<>();
+
+  /**
+   * Starts a phase, ending when the returned phase is closed.
+   */
+  public synchronized Phase start(String name) {
+    Phase phase = new Phase(name, System.currentTimeMillis());
+    phases.add(phase);
+    return phase;
+  }
+
+  /**
+   * Records a phase measured elsewhere.
+   */
+  public synchronized Phase record(String name, long startMillis, long endMillis) {
+    Phase phase = new Phase(name, startMillis);
+    phase.end(endMillis);
+    phases.add(phase);
+    return phase;
+  }
+
+  public synchronized List<Phase> getPhases() {
+    return new ArrayList<>(phases);
+  }
+
+  /**
+   * Writes the metrics as a JSON document.
+   *
+   * @param goal the goal executed.
+   * @param project the project the goal was executed for.
+   */
+  public void write(File file, String goal, String project) throws IOException {
+    SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+    StringBuilder json = new StringBuilder("{\n  \"goal\": ");
+    Utils.appendJsonString(json, goal).append(",\n  \"project\": ");
+    Utils.appendJsonString(json, project).append(",\n  \"startTime\": ");
+    Utils.appendJsonString(json, timestamp.format(new Date(start)))
+        .append(",\n  \"totalMillis\": ").append(System.currentTimeMillis() - start)
+        .append(",\n  \"phases\": [");
+    List<Phase> recorded = getPhases();
+    for (int i = 0; i < recorded.size(); i++) {
+      Phase phase = recorded.get(i);
+      json.append(i == 0 ? "\n" : ",\n").append("    {\"name\": ");
+      Utils.appendJsonString(json, phase.name)
+          .append(", \"startOffsetMillis\": ").append(phase.start - start)
+          .append(", \"millis\": ").append(phase.getMillis())
+          .append(", \"files\": ").append(phase.files.get())
+          .append(", \"bytesRead\": ").append(phase.bytesRead.get())
+          .append(", \"bytesWritten\": ").append(phase.bytesWritten.get()).append('}');
+    }
+    json.append(recorded.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create the directory of " + file);
+    }
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file), UTF_8)) {
+      out.write(json.toString());
+    }
+  }
+
+  /**
+   * Logs the phases as a table.
+   */
+  public void log(Log log, String goal) {
+    List<Phase> recorded = getPhases();
+    if (recorded.isEmpty()) {
+      return;
+    }
+    log.info("");
+    log.info(goal + " took " + (System.currentTimeMillis() - start) + " ms:");
+    log.info(String.format("  %-32s %10s %8s %12s %12s", "Phase", "Time (ms)", "Files",
+        "Read (KB)", "Written (KB)"));
+    for (Phase phase : recorded) {
+      log.info(String.format("  %-32s %10d %8d %12d %12d", phase.name, phase.getMillis(),
+          phase.files.get(), phase.bytesRead.get() / 1024, phase.bytesWritten.get() / 1024));
+    }
+  }
+}
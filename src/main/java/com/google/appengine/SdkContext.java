@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * The App Engine SDK one execution of the plugin works with.
+ *
+ * <p>The SDK tooling finds its root through the JVM wide {@code appengine.sdk.root} property. In a
+ * parallel build, executions using the same SDK share it and run together, while an execution
+ * needing another SDK waits until no execution uses the current one. Closing the context releases
+ * the SDK.
+ *
+ * <p>Executions needing different SDKs are therefore serialized, not isolated: they take turns
+ * with the property, and any state the tooling caches in static fields of the plugin class loader
+ * is shared by all of them. This also holds with the staging service, which loads the tooling of
+ * each SDK in its own class loader, since staging holds the context too.
+ */
+public class SdkContext implements AutoCloseable {
+
+  private static final String SDK_ROOT_PROPERTY = "appengine.sdk.root";
+
+  private static final Object LOCK = new Object();
+  private static String activeRoot;
+  private static int users;
+
+  private final String root;
+  private boolean closed;
+
+  private SdkContext(String root) {
+    this.root = root;
+  }
+
+  /**
+   * Makes the SDK the one of the JVM until the returned context is closed, waiting for the
+   * executions using another SDK to complete first.
+   *
+   * @param sdkRoot the SDK root directory returned by {@code SdkResolver.getSdk}.
+   * @param log where to report waiting for another SDK, can be null.
+   */
+  public static SdkContext acquire(File sdkRoot, Log log) throws MojoExecutionException {
+    String root;
+    try {
+      root = sdkRoot.getCanonicalPath();
+    } catch (IOException e) {
+      throw new MojoExecutionException("Could not locate the SDK in " + sdkRoot, e);
+    }
+    synchronized (LOCK) {
+      if (users > 0 && !root.equals(activeRoot) && log != null) {
+        log.info("Waiting for the executions using the SDK " + activeRoot + " to complete.");
+      }
+      while (users > 0 && !root.equals(activeRoot)) {
+        try {
+          LOCK.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new MojoExecutionException("Interrupted while waiting for the SDK " + root, e);
+        }
+      }
+      if (users == 0) {
+        activeRoot = root;
+        System.setProperty(SDK_ROOT_PROPERTY, root);
+      }
+      users++;
+    }
+    return new SdkContext(root);
+  }
+
+  /**
+   * @return the canonical path of the SDK root directory.
+   */
+  public String getRoot() {
+    return root;
+  }
+
+  /**
+   * Releases the SDK, letting executions waiting for another SDK proceed once it is unused.
+   */
+  @Override
+  public void close() {
+    synchronized (LOCK) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (--users == 0) {
+        LOCK.notifyAll();
+      }
+    }
+  }
+}
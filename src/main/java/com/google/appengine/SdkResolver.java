@@ -5,20 +5,40 @@ package com.google.appengine;
 
 import static com.google.common.collect.Iterables.find;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.io.ByteStreams;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Properties;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.RepositorySystemSession;
@@ -44,9 +64,99 @@ public class SdkResolver {
   private static final String SDK_ARTIFACT_ID = "appengine-java-sdk";
   private static final String SDK_EXTENSION = "zip";
 
+  private static final String EXTRACTION_MARKER = ".extraction-complete";
+  private static final String MARKER_CHECKSUM = "archive.sha1";
+  private static final String MARKER_FILES = "files";
+  private static final String MARKER_ARCHIVE_SIZE = "archive.size";
+  private static final String MARKER_ARCHIVE_TIME = "archive.lastModified";
+  private static final String MARKER_ROOT = "root";
+  private static final String MARKER_ARCHIVE = "archive";
+  private static final String MARKER_INCLUDES = "includes";
+  private static final String EXTRACTION_COMMENT = "App Engine SDK extraction complete";
+  private static final String SDK_STORE = "store";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final String CHECKSUM_SUFFIX = ".checksum";
+  private static final String CHECKSUM_COMMENT = "App Engine SDK archive checksum";
+
+  private static final String VERSION_CACHE = "newest-version.properties";
+  private static final String CACHE_VERSION = "version";
+  private static final String CACHE_RESOLVED = "resolved";
+
+  /**
+   * Settings controlling how the SDK is resolved and unpacked.
+   */
+  public static class Options {
+
+    private Log log;
+    private int extractionThreads;
+    private long versionCacheTtlMinutes = 24 * 60;
+    private boolean offline;
+    private List<String> includes;
+    private BuildMetrics metrics = new BuildMetrics();
+
+    /**
+     * Where to report the SDK resolution and extraction, null for no report.
+     */
+    public Options setLog(Log log) {
+      this.log = log;
+      return this;
+    }
+
+    /**
+     * Number of threads unpacking the SDK, 0 for one per available processor.
+     */
+    public Options setExtractionThreads(int extractionThreads) {
+      this.extractionThreads = extractionThreads;
+      return this;
+    }
+
+    /**
+     * How long the newest SDK version resolved for a -SNAPSHOT plugin is reused before asking the
+     * remote repositories again, 0 to always ask.
+     */
+    public Options setVersionCacheTtlMinutes(long versionCacheTtlMinutes) {
+      this.versionCacheTtlMinutes = versionCacheTtlMinutes;
+      return this;
+    }
+
+    /**
+     * Only use the cached newest SDK version, never ask the remote repositories.
+     */
+    public Options setOffline(boolean offline) {
+      this.offline = offline;
+      return this;
+    }
+
+    /**
+     * Only unpack the parts of the SDK matching these patterns, the other parts being unpacked
+     * when first requested through {@link #ensureExtracted(File, String)}. Patterns are path
+     * prefixes relative to the SDK root, a '!' in front excludes the prefix instead. Null unpacks
+     * the whole SDK.
+     */
+    public Options setIncludes(List<String> includes) {
+      this.includes = includes;
+      return this;
+    }
+
+    /**
+     * Where to record the time spent resolving and unpacking the SDK.
+     */
+    public Options setMetrics(BuildMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+  }
+
   public static File getSdk(MavenProject project, RepositorySystem repoSystem,
       RepositorySystemSession repoSession, List<RemoteRepository>... repos)
       throws MojoExecutionException {
+    return getSdk(project, repoSystem, repoSession, new Options(), repos);
+  }
+
+  public static File getSdk(MavenProject project, RepositorySystem repoSystem,
+      RepositorySystemSession repoSession, Options options, List<RemoteRepository>... repos)
+      throws MojoExecutionException {
     Artifact artifact = find(project.getPluginArtifacts(), new Predicate<Artifact>() {
       @Override
       public boolean apply(Artifact artifact1) {
@@ -57,11 +167,70 @@ public class SdkResolver {
     String version = artifact.getVersion();
 
     if (version.endsWith("-SNAPSHOT")) {
-      String newestVersion = determineNewestVersion(repoSystem, repoSession, repos);
-      return getSdk(newestVersion, repoSystem, repoSession, repos);
+      String newestVersion;
+      try (BuildMetrics.Phase phase = options.metrics.start("sdk-version")) {
+        newestVersion = getNewestVersion(repoSystem, repoSession, options, repos);
+      }
+      return getSdk(newestVersion, repoSystem, repoSession, options, repos);
+    }
+
+    return getSdk("1.9.42", repoSystem, repoSession, options, repos);
+  }
+
+  /**
+   * Returns the newest SDK version, from the on-disk cache in the local repository when it is
+   * fresh enough, from the remote repositories otherwise.
+   */
+  private static String getNewestVersion(RepositorySystem repoSystem,
+      RepositorySystemSession repoSession, Options options, List<RemoteRepository>[] repos)
+      throws MojoExecutionException {
+    File cache = new File(repoSession.getLocalRepository().getBasedir(),
+        SDK_GROUP_ID.replace('.', '/') + "/" + SDK_ARTIFACT_ID + "/" + VERSION_CACHE);
+    Properties cached = new Properties();
+    if (cache.isFile()) {
+      try (InputStream in = new FileInputStream(cache)) {
+        cached.load(in);
+      } catch (IOException | IllegalArgumentException e) {
+        cached.clear();
+      }
+    }
+    String cachedVersion = cached.getProperty(CACHE_VERSION);
+    long ageMinutes = Long.MAX_VALUE;
+    try {
+      ageMinutes = (System.currentTimeMillis()
+          - Long.parseLong(cached.getProperty(CACHE_RESOLVED, ""))) / 60000;
+    } catch (NumberFormatException e) {
+      // Never resolved.
+    }
+    if (cachedVersion != null
+        && (options.offline || ageMinutes < options.versionCacheTtlMinutes)) {
+      if (options.log != null) {
+        options.log.info("Using App Engine SDK version " + cachedVersion
+            + " (cache hit, resolved " + ageMinutes + " minutes ago).");
+      }
+      return cachedVersion;
+    }
+    if (options.offline) {
+      throw new MojoExecutionException("No cached App Engine SDK version in " + cache
+          + ", the newest version has to be resolved online once.");
     }
 
-    return getSdk("1.9.42", repoSystem, repoSession, repos);
+    String version = determineNewestVersion(repoSystem, repoSession, repos);
+    if (options.log != null) {
+      options.log.info("Using App Engine SDK version " + version
+          + " (resolved from the remote repositories).");
+    }
+    cached.setProperty(CACHE_VERSION, version);
+    cached.setProperty(CACHE_RESOLVED, Long.toString(System.currentTimeMillis()));
+    try {
+      cache.getParentFile().mkdirs();
+      writeProperties(cache, cached, "Newest App Engine SDK version");
+    } catch (IOException e) {
+      if (options.log != null) {
+        options.log.warn("Cannot cache the App Engine SDK version in " + cache + ": " + e);
+      }
+    }
+    return version;
   }
 
   private static String determineNewestVersion(RepositorySystem repoSystem,
@@ -97,39 +266,105 @@ public class SdkResolver {
   public static File getSdk(String version, RepositorySystem repoSystem,
       RepositorySystemSession repoSession, List<RemoteRepository>... repos)
       throws MojoExecutionException {
+    return getSdk(version, repoSystem, repoSession, new Options(), repos);
+  }
+
+  public static File getSdk(String version, RepositorySystem repoSystem,
+      RepositorySystemSession repoSession, Options options, List<RemoteRepository>... repos)
+      throws MojoExecutionException {
+    Log log = options.log;
 
     List<RemoteRepository> allRepos = ImmutableList.copyOf(Iterables.concat(repos));
 
     ArtifactRequest request = new ArtifactRequest(
         new DefaultArtifact(SDK_GROUP_ID, SDK_ARTIFACT_ID, SDK_EXTENSION, version), allRepos, null);
 
-    ArtifactResult result;
-    try {
-      result = repoSystem.resolveArtifact(repoSession, request);
-    } catch (ArtifactResolutionException e) {
-      throw new MojoExecutionException("Could not resolve SDK artifact in Maven.", e);
-    }
-
-    File sdkArchive = result.getArtifact().getFile();
-    File sdkRepoDir = sdkArchive.getParentFile();
-    File sdkBaseDir = new File(sdkRepoDir, SDK_ARTIFACT_ID);
+    File sdkArchive;
+    String checksum;
+    try (BuildMetrics.Phase phase = options.metrics.start("sdk-resolve")) {
+      ArtifactResult result;
+      try {
+        result = repoSystem.resolveArtifact(repoSession, request);
+      } catch (ArtifactResolutionException e) {
+        throw new MojoExecutionException("Could not resolve SDK artifact in Maven.", e);
+      }
 
-    if (sdkBaseDir.exists() && !sdkBaseDir.isDirectory()) {
-      throw new MojoExecutionException(
-          "Could not unpack the SDK because there is an unexpected file at "
-              + sdkBaseDir + " which conflicts with where we plan to unpack the SDK.");
+      sdkArchive = result.getArtifact().getFile();
+      try {
+        checksum = getArchiveChecksum(sdkArchive);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Could not read SDK zip archive.", e);
+      }
     }
+    // Unpacked SDKs are shared by all the builds of the host, in a store next to the versions of
+    // the artifact and keyed by the checksum of the archive they come from.
+    File storeDir = new File(sdkArchive.getParentFile().getParentFile(), SDK_STORE);
+    File sdkBaseDir = new File(storeDir, checksum);
+    List<String> includes = options.includes;
+
+    // An SDK is only ever published in the store complete with its marker, and is never written
+    // again except to add parts of a partially unpacked SDK, so it can be used without locking.
+    Properties extracted = readExtractionMarker(sdkBaseDir);
+    if (extracted != null && contains(extracted, includes)
+        && isIntact(sdkBaseDir, extracted, checksum)) {
+      return getSdkRoot(sdkBaseDir, extracted.getProperty(MARKER_ROOT));
+    }
+
+    synchronized (SdkResolver.class) {
+      storeDir.mkdirs();
+      try (FileChannel lock = lockStore(sdkBaseDir, log)) {
+        // Another build may have unpacked the SDK while we were waiting for the lock.
+        extracted = readExtractionMarker(sdkBaseDir);
+        if (extracted != null) {
+          boolean intact = isIntact(sdkBaseDir, extracted, checksum);
+          if (intact && contains(extracted, includes)) {
+            return getSdkRoot(sdkBaseDir, extracted.getProperty(MARKER_ROOT));
+          }
+          if (!intact && log != null) {
+            log.warn("The SDK unpacked in " + sdkBaseDir
+                + " does not match its marker, unpacking the missing files again.");
+          }
+          List<String> extractedIncludes = getIncludes(extracted);
+          if (extractedIncludes == null) {
+            includes = null;
+          } else if (includes != null) {
+            // Some more parts of an SDK partially extracted before are needed.
+            includes = merge(extractedIncludes, includes);
+          }
+          return extract(sdkArchive, checksum, sdkBaseDir, includes, options);
+        }
 
-    if (!sdkBaseDir.exists()) {
-      sdkBaseDir.mkdirs();
+        // Anything left without a marker comes from a build that died while unpacking.
+        File tmpDir = new File(storeDir, checksum + TMP_SUFFIX);
+        FileUtils.deleteDirectory(tmpDir);
+        FileUtils.deleteDirectory(sdkBaseDir);
+        File sdkRoot = extract(sdkArchive, checksum, tmpDir, includes, options);
+        try {
+          java.nio.file.Files.move(tmpDir.toPath(), sdkBaseDir.toPath(),
+              StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          java.nio.file.Files.move(tmpDir.toPath(), sdkBaseDir.toPath());
+        }
+        return new File(sdkBaseDir, tmpDir.toPath().relativize(sdkRoot.toPath()).toString());
+      } catch (IOException e) {
+        throw new MojoExecutionException("Could not unpack the SDK in " + sdkBaseDir, e);
+      }
     }
+  }
 
+  /**
+   * Unpacks the SDK archive, or the parts of it matching the include patterns, and writes the
+   * marker recording what was unpacked. Files already unpacked with the right size are kept.
+   *
+   * @return the SDK root directory.
+   */
+  private static File extract(File sdkArchive, String checksum, File sdkBaseDir,
+      List<String> includes, Options options) throws MojoExecutionException {
     // While processing the zip archive, if we find an initial entry that is a directory, and all
     // entries are a child of this directory, then we append this to the sdkBaseDir we return.
     String sdkBaseDirSuffix = null;
 
-    try {
-      ZipFile sdkZipArchive = new ZipFile(sdkArchive);
+    try (ZipFile sdkZipArchive = new ZipFile(sdkArchive)) {
       Enumeration<? extends ZipEntry> zipEntries = sdkZipArchive.entries();
 
       if (!zipEntries.hasMoreElements()) {
@@ -145,34 +380,405 @@ public class SdkResolver {
         zipEntries = sdkZipArchive.entries();
       }
 
+      List<ZipEntry> fileEntries = new ArrayList<>();
       while (zipEntries.hasMoreElements()) {
         ZipEntry zipEntry = zipEntries.nextElement();
 
         if (!zipEntry.isDirectory()) {
-          File zipEntryDestination = new File(sdkBaseDir, zipEntry.getName());
-
-          if (!zipEntry.getName().startsWith(sdkBaseDirSuffix)) {
+          if (sdkBaseDirSuffix != null && !zipEntry.getName().startsWith(sdkBaseDirSuffix)) {
             // We found an entry that doesn't use this initial base directory, oh well, just set it
             // to null.
             sdkBaseDirSuffix = null;
           }
+          fileEntries.add(zipEntry);
+        }
+      }
+      String root = sdkBaseDirSuffix == null ? "" : sdkBaseDirSuffix;
 
-          if (!zipEntryDestination.exists()) {
-            Files.createParentDirs(zipEntryDestination);
-            Files.write(ByteStreams.toByteArray(sdkZipArchive.getInputStream(zipEntry)),
-                zipEntryDestination);
-          }
+      List<ZipEntry> missingEntries = new ArrayList<>();
+      for (ZipEntry zipEntry : fileEntries) {
+        if (includes != null
+            && !isIncluded(includes, zipEntry.getName().substring(root.length()))) {
+          continue;
+        }
+        File zipEntryDestination = new File(sdkBaseDir, zipEntry.getName());
+        if (!zipEntryDestination.isFile()
+            || zipEntryDestination.length() != zipEntry.getSize()) {
+          missingEntries.add(zipEntry);
         }
       }
+      try (BuildMetrics.Phase phase = options.metrics.start("sdk-extract")) {
+        ZipExtractor extractor = new ZipExtractor(options.extractionThreads, options.log);
+        extractor.extract(sdkZipArchive, missingEntries, sdkBaseDir);
+        for (ZipEntry zipEntry : missingEntries) {
+          phase.addBytesRead(Math.max(zipEntry.getCompressedSize(), 0));
+        }
+        phase.addFiles(extractor.getFileCount()).addBytesWritten(extractor.getByteCount());
+      }
+
+      Properties completed = new Properties();
+      completed.setProperty(MARKER_ARCHIVE, sdkArchive.getAbsolutePath());
+      completed.setProperty(MARKER_CHECKSUM, checksum);
+      completed.setProperty(MARKER_ROOT, root);
+      if (includes != null) {
+        completed.setProperty(MARKER_INCLUDES, Joiner.on(',').join(includes));
+      }
+      completed.setProperty(MARKER_FILES, Integer.toString(countFiles(sdkBaseDir)));
+      writeProperties(new File(sdkBaseDir, EXTRACTION_MARKER), completed, EXTRACTION_COMMENT);
 
     } catch (IOException e) {
       throw new MojoExecutionException("Could not open SDK zip archive.", e);
     }
 
-    if (sdkBaseDirSuffix == null) {
+    return getSdkRoot(sdkBaseDir, sdkBaseDirSuffix);
+  }
+
+  /**
+   * @return true if an SDK unpacked as the marker records contains the parts of the SDK selected
+   *     by the include patterns.
+   */
+  private static boolean contains(Properties extracted, List<String> includes) {
+    List<String> extractedIncludes = getIncludes(extracted);
+    if (extractedIncludes == null) {
+      return true;
+    }
+    if (includes == null) {
+      return false;
+    }
+    for (String include : includes) {
+      if (!include.startsWith("!") && !covers(extractedIncludes, includes, include)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the parts of the SDK selected by the requested patterns to the patterns of an SDK
+   * partially unpacked before. Parts the requested patterns exclude but that were unpacked before
+   * stay included.
+   */
+  private static List<String> merge(List<String> extracted, List<String> requested) {
+    List<String> includes = new ArrayList<>();
+    for (String include : requested) {
+      if (!include.startsWith("!")) {
+        includes.add(include);
+      }
+    }
+    // Shorter prefixes first, so that adding a directory never drops a pattern requested under it.
+    Collections.sort(includes, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Integer.compare(a.length(), b.length());
+      }
+    });
+    List<String> merged = new ArrayList<>(extracted);
+    for (String include : includes) {
+      if (covers(merged, requested, include)) {
+        continue;
+      }
+      addInclude(merged, include);
+      for (String exclude : requested) {
+        if (exclude.startsWith("!") && exclude.substring(1).startsWith(include)
+            && !isIncluded(extracted, exclude.substring(1))) {
+          merged.add(exclude);
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Adds the pattern of a part of the SDK now unpacked as a whole, dropping the patterns under it,
+   * which it overrides, so that the marker does not grow each time a part is requested.
+   */
+  private static void addInclude(List<String> includes, String include) {
+    for (Iterator<String> it = includes.iterator(); it.hasNext(); ) {
+      if (prefixOf(it.next()).startsWith(include)) {
+        it.remove();
+      }
+    }
+    includes.add(include);
+  }
+
+  /**
+   * Makes sure a file or directory of an SDK unpacked with include patterns is on disk,
+   * extracting it from the SDK archive the first time it is requested. Does nothing for a
+   * completely unpacked SDK, or an SDK not unpacked by this resolver.
+   *
+   * @param sdkRoot the SDK root directory returned by {@code getSdk}.
+   * @param path a file, or a directory ending with '/', relative to the SDK root.
+   */
+  public static synchronized void ensureExtracted(File sdkRoot, String path) {
+    File sdkBaseDir = sdkRoot;
+    File marker = new File(sdkBaseDir, EXTRACTION_MARKER);
+    if (!marker.isFile()) {
+      sdkBaseDir = sdkRoot.getParentFile();
+      marker = new File(sdkBaseDir, EXTRACTION_MARKER);
+    }
+    if (!marker.isFile() || isCovered(sdkBaseDir, path)) {
+      return;
+    }
+    try (FileChannel lock = lockStore(sdkBaseDir, null)) {
+      // Another build may have extracted the path while we were waiting for the lock.
+      Properties extracted = readExtractionMarker(sdkBaseDir);
+      if (extracted == null) {
+        throw new IOException("Cannot read the SDK extraction marker " + marker);
+      }
+      List<String> includes = getIncludes(extracted);
+      if (includes == null || isCovered(includes, path)) {
+        return;
+      }
+      String root = extracted.getProperty(MARKER_ROOT, "");
+      try (ZipFile sdkZipArchive = new ZipFile(extracted.getProperty(MARKER_ARCHIVE))) {
+        List<ZipEntry> missingEntries = new ArrayList<>();
+        Enumeration<? extends ZipEntry> zipEntries = sdkZipArchive.entries();
+        while (zipEntries.hasMoreElements()) {
+          ZipEntry zipEntry = zipEntries.nextElement();
+          if (!zipEntry.isDirectory() && zipEntry.getName().startsWith(root + path)) {
+            File zipEntryDestination = new File(sdkBaseDir, zipEntry.getName());
+            if (!zipEntryDestination.isFile()
+                || zipEntryDestination.length() != zipEntry.getSize()) {
+              missingEntries.add(zipEntry);
+            }
+          }
+        }
+        new ZipExtractor(0, null).extract(sdkZipArchive, missingEntries, sdkBaseDir);
+      }
+      addInclude(includes, path);
+      extracted.setProperty(MARKER_INCLUDES, Joiner.on(',').join(includes));
+      extracted.setProperty(MARKER_FILES, Integer.toString(countFiles(sdkBaseDir)));
+      writeProperties(marker, extracted, EXTRACTION_COMMENT);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot extract " + path + " from the SDK archive.", e);
+    }
+  }
+
+  /**
+   * @return true if the marker was written for the archive with the given checksum, and the files
+   *     it counted are all still on disk. A file deleted or added since, by a cleanup or an
+   *     interrupted copy of the store, makes the SDK unpacked again.
+   */
+  private static boolean isIntact(File sdkBaseDir, Properties extracted, String checksum)
+      throws MojoExecutionException {
+    if (!checksum.equals(extracted.getProperty(MARKER_CHECKSUM))) {
+      return false;
+    }
+    try {
+      return Integer.toString(countFiles(sdkBaseDir)).equals(extracted.getProperty(MARKER_FILES));
+    } catch (IOException e) {
+      throw new MojoExecutionException("Could not read the SDK unpacked in " + sdkBaseDir, e);
+    }
+  }
+
+  /**
+   * @return the number of files unpacked in an SDK of the store, not counting its marker.
+   */
+  private static int countFiles(File sdkBaseDir) throws IOException {
+    final int[] count = new int[1];
+    java.nio.file.Files.walkFileTree(sdkBaseDir.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (!file.getFileName().toString().equals(EXTRACTION_MARKER)) {
+          count[0]++;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return count[0];
+  }
+
+  /**
+   * @return true if the marker of the unpacked SDK already covers the path.
+   */
+  private static boolean isCovered(File sdkBaseDir, String path) {
+    Properties extracted = readExtractionMarker(sdkBaseDir);
+    if (extracted == null) {
+      return false;
+    }
+    List<String> includes = getIncludes(extracted);
+    return includes == null || isCovered(includes, path);
+  }
+
+  /**
+   * Locks an SDK of the store against the other builds of the host, waiting for the build
+   * currently holding it. Closing the returned channel releases the lock.
+   */
+  private static FileChannel lockStore(File sdkBaseDir, Log log) throws IOException {
+    File lockFile = new File(sdkBaseDir.getParentFile(), sdkBaseDir.getName() + LOCK_SUFFIX);
+    FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    try {
+      if (channel.tryLock() == null) {
+        if (log != null) {
+          log.info("Waiting for another build unpacking the SDK in " + sdkBaseDir);
+        }
+        channel.lock();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * @return the include patterns the SDK was unpacked with, or null if it was unpacked entirely.
+   */
+  private static List<String> getIncludes(Properties extracted) {
+    String includes = extracted.getProperty(MARKER_INCLUDES);
+    if (includes == null) {
+      return null;
+    }
+    List<String> patterns = new ArrayList<>();
+    for (String include : Splitter.on(',').omitEmptyStrings().split(includes)) {
+      // A later pattern for the same prefix overrides an earlier one.
+      for (Iterator<String> it = patterns.iterator(); it.hasNext(); ) {
+        if (prefixOf(it.next()).equals(prefixOf(include))) {
+          it.remove();
+        }
+      }
+      patterns.add(include);
+    }
+    return patterns;
+  }
+
+  private static String prefixOf(String include) {
+    return include.startsWith("!") ? include.substring(1) : include;
+  }
+
+  /**
+   * Include patterns are path prefixes relative to the SDK root, a '!' in front excludes the
+   * prefix instead. The longest pattern matching a path decides.
+   */
+  static boolean isIncluded(List<String> includes, String path) {
+    String longest = "";
+    boolean included = false;
+    for (String include : includes) {
+      boolean exclude = include.startsWith("!");
+      String prefix = exclude ? include.substring(1) : include;
+      if (path.startsWith(prefix) && prefix.length() >= longest.length()) {
+        longest = prefix;
+        included = !exclude;
+      }
+    }
+    return included;
+  }
+
+  /**
+   * @return true if the path, and everything under it when it is a directory, is included.
+   */
+  private static boolean isCovered(List<String> includes, String path) {
+    return covers(includes, Collections.singletonList(path), path);
+  }
+
+  /**
+   * @return true if everything the requested patterns select under the prefix is selected by the
+   *     extracted patterns too. An exclude under the prefix only leaves a hole when no longer or
+   *     later include of the extracted patterns selects it again.
+   */
+  private static boolean covers(List<String> extracted, List<String> requested, String prefix) {
+    if (!isIncluded(extracted, prefix)) {
+      return false;
+    }
+    for (String include : extracted) {
+      if (include.startsWith("!")) {
+        String excluded = include.substring(1);
+        if (excluded.startsWith(prefix) && isIncluded(requested, excluded)
+            && !isIncluded(extracted, excluded)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static File getSdkRoot(File sdkBaseDir, String sdkBaseDirSuffix) {
+    if (sdkBaseDirSuffix == null || sdkBaseDirSuffix.isEmpty()) {
       return sdkBaseDir;
     }
 
     return new File(sdkBaseDir, sdkBaseDirSuffix);
   }
+
+  /**
+   * Reads the marker written in an SDK of the store once it is completely unpacked.
+   *
+   * @return the marker properties, or null if the SDK is not unpacked.
+   */
+  private static Properties readExtractionMarker(File sdkBaseDir) {
+    File marker = new File(sdkBaseDir, EXTRACTION_MARKER);
+    if (!marker.isFile()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(marker)) {
+      properties.load(in);
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+    String root = properties.getProperty(MARKER_ROOT);
+    if (root == null || properties.getProperty(MARKER_ARCHIVE) == null
+        || !getSdkRoot(sdkBaseDir, root).isDirectory()) {
+      return null;
+    }
+    return properties;
+  }
+
+  /**
+   * Returns the checksum of the SDK archive. It is recorded next to the archive and reused as
+   * long as the archive keeps the same size and timestamp, so that the archive is only read again
+   * when it changes.
+   */
+  private static String getArchiveChecksum(File sdkArchive) throws IOException {
+    File index = new File(sdkArchive.getParentFile(), sdkArchive.getName() + CHECKSUM_SUFFIX);
+    Properties properties = new Properties();
+    if (index.isFile()) {
+      try (InputStream in = new FileInputStream(index)) {
+        properties.load(in);
+      } catch (IOException | IllegalArgumentException e) {
+        properties.clear();
+      }
+    }
+    String checksum = properties.getProperty(MARKER_CHECKSUM);
+    String size = Long.toString(sdkArchive.length());
+    String lastModified = Long.toString(sdkArchive.lastModified());
+    if (checksum != null && size.equals(properties.getProperty(MARKER_ARCHIVE_SIZE))
+        && lastModified.equals(properties.getProperty(MARKER_ARCHIVE_TIME))) {
+      return checksum;
+    }
+    checksum = checksum(sdkArchive);
+    properties.setProperty(MARKER_CHECKSUM, checksum);
+    properties.setProperty(MARKER_ARCHIVE_SIZE, size);
+    properties.setProperty(MARKER_ARCHIVE_TIME, lastModified);
+    try {
+      writeProperties(index, properties, CHECKSUM_COMMENT);
+    } catch (IOException e) {
+      // Only a cache, the checksum is computed again next time.
+    }
+    return checksum;
+  }
+
+  /**
+   * Writes the properties to a temporary file first, then moves it in place, so that the file only
+   * ever exists complete. Each writer has its own temporary file, so that concurrent builds do not
+   * write into the same one.
+   */
+  private static void writeProperties(File file, Properties properties, String comment)
+      throws IOException {
+    File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      properties.store(out, comment);
+    }
+    try {
+      java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static String checksum(File sdkArchive) throws IOException {
+    return Files.hash(sdkArchive, Hashing.sha1()).toString();
+  }
 }
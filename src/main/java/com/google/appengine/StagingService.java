@@ -0,0 +1,178 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Stages applications with the AppCfg tooling of one SDK, loaded once in its own class loader and
+ * reused by all the executions of the plugin in the JVM, so that only the first staging pays for
+ * loading and warming up the tooling.
+ *
+ * <p>The class loader looks up the SDK tooling in the SDK tools jar before the plugin class
+ * path, except for the SDK location classes the plugin overrides.
+ */
+public class StagingService {
+
+  private static final String TOOLS_JAR = "lib/appengine-tools-api.jar";
+  private static final String APPCFG_CLASS = "com.google.appengine.tools.admin.AppCfg";
+
+  /** Packages loaded by the tooling class loader itself rather than by the plugin. */
+  private static final String[] TOOLING_PACKAGES = {
+      "com.google.appengine.tools.",
+      "com.google.apphosting.",
+      "com.google.appengine.repackaged."
+  };
+
+  private static final Map<String, StagingService> SERVICES = new HashMap<>();
+
+  private final String sdkRoot;
+  private final ClassLoader classLoader;
+  private final Method appCfgMain;
+
+  private StagingService(String sdkRoot, ClassLoader classLoader, Method appCfgMain) {
+    this.sdkRoot = sdkRoot;
+    this.classLoader = classLoader;
+    this.appCfgMain = appCfgMain;
+  }
+
+  /**
+   * Returns the staging service of an SDK, loading its tooling the first time.
+   *
+   * @param sdk the SDK the application is staged with.
+   * @param log where to report loading the tooling, can be null.
+   */
+  public static StagingService get(SdkContext sdk, Log log) throws MojoExecutionException {
+    synchronized (SERVICES) {
+      StagingService service = SERVICES.get(sdk.getRoot());
+      if (service == null) {
+        long start = System.currentTimeMillis();
+        service = load(sdk.getRoot());
+        SERVICES.put(sdk.getRoot(), service);
+        if (log != null) {
+          log.info("Loaded the SDK staging tooling in " + (System.currentTimeMillis() - start)
+              + " ms.");
+        }
+      } else if (log != null) {
+        log.debug("Reusing the SDK staging tooling loaded from " + sdk.getRoot());
+      }
+      return service;
+    }
+  }
+
+  private static StagingService load(String sdkRoot) throws MojoExecutionException {
+    File sdkRootDir = new File(sdkRoot);
+    SdkResolver.ensureExtracted(sdkRootDir, TOOLS_JAR);
+    File toolsJar = new File(sdkRootDir, TOOLS_JAR);
+    if (!toolsJar.isFile()) {
+      throw new MojoExecutionException("Cannot find the SDK tooling in " + toolsJar);
+    }
+    URL pluginLocation = StagingService.class.getProtectionDomain().getCodeSource().getLocation();
+    ClassLoader classLoader;
+    try {
+      // The plugin comes first for its SDK location classes to win over the ones of the SDK.
+      classLoader = new ToolingClassLoader(
+          new URL[] {pluginLocation, toolsJar.toURI().toURL()},
+          StagingService.class.getClassLoader());
+    } catch (MalformedURLException e) {
+      throw new MojoExecutionException("Cannot load the SDK tooling from " + toolsJar, e);
+    }
+    try {
+      Method main = classLoader.loadClass(APPCFG_CLASS).getMethod("main", String[].class);
+      return new StagingService(sdkRoot, classLoader, main);
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      throw new MojoExecutionException("Cannot load AppCfg from " + toolsJar, e);
+    }
+  }
+
+  /**
+   * @return the root of the SDK whose tooling this service uses.
+   */
+  public String getSdkRoot() {
+    return sdkRoot;
+  }
+
+  /**
+   * Stages an application, running the AppCfg stage command.
+   *
+   * @param options the AppCfg options, before the stage command.
+   * @param appDir the exploded application directory.
+   * @param stagingDir the directory to stage the application in.
+   */
+  public void stage(List<String> options, String appDir, String stagingDir)
+      throws MojoExecutionException {
+    String[] arguments = options.toArray(new String[options.size() + 3]);
+    arguments[options.size()] = "stage";
+    arguments[options.size() + 1] = appDir;
+    arguments[options.size() + 2] = stagingDir;
+
+    Thread thread = Thread.currentThread();
+    ClassLoader contextClassLoader = thread.getContextClassLoader();
+    thread.setContextClassLoader(classLoader);
+    try {
+      appCfgMain.invoke(null, (Object) arguments);
+    } catch (InvocationTargetException e) {
+      throw new MojoExecutionException("Error: staging " + appDir + " " + e.getCause(),
+          e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new MojoExecutionException("Cannot run AppCfg", e);
+    } finally {
+      thread.setContextClassLoader(contextClassLoader);
+    }
+  }
+
+  /**
+   * Loads the SDK tooling classes from its own URLs first, and the other classes from the plugin.
+   */
+  private static class ToolingClassLoader extends URLClassLoader {
+
+    static {
+      ClassLoader.registerAsParallelCapable();
+    }
+
+    ToolingClassLoader(URL[] urls, ClassLoader parent) {
+      super(urls, parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!isTooling(name)) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+          try {
+            loaded = findClass(name);
+          } catch (ClassNotFoundException e) {
+            loaded = super.loadClass(name, false);
+          }
+        }
+        if (resolve) {
+          resolveClass(loaded);
+        }
+        return loaded;
+      }
+    }
+
+    private static boolean isTooling(String name) {
+      for (String prefix : TOOLING_PACKAGES) {
+        if (name.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -4,6 +4,14 @@
 package com.google.appengine;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author ludo
@@ -79,4 +87,88 @@ public class Utils {
     boolean noVirtEnvDefined = virtualEnv == null || virtualEnv.isEmpty();
     return noSiteDefined && noVirtEnvDefined;
   }
+
+  /**
+   * Appends a string to a JSON document as a quoted JSON string.
+   */
+  public static StringBuilder appendJsonString(StringBuilder json, CharSequence value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    return json.append('"');
+  }
+
+  /**
+   * Creates a fixed pool of daemon threads named after the given name and their number, so that
+   * the threads never keep the build JVM alive.
+   */
+  public static ExecutorService newDaemonPool(final String name, int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Waits for all the tasks, even when some of them fail, so that none is left running.
+   *
+   * @return the cause of the failure of each failed task by its key, in the order of the tasks.
+   */
+  public static <K> Map<K, Throwable> awaitAll(Map<K, ? extends Future<?>> futures)
+      throws InterruptedException {
+    Map<K, Throwable> failures = new LinkedHashMap<>();
+    for (Map.Entry<K, ? extends Future<?>> future : futures.entrySet()) {
+      try {
+        future.getValue().get();
+      } catch (ExecutionException e) {
+        failures.put(future.getKey(), e.getCause());
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * @return the failed tasks with the message of their failure, as in "a (exit code 1), b (...)".
+   */
+  public static String describeFailures(Map<?, Throwable> failures) {
+    StringBuilder description = new StringBuilder();
+    for (Map.Entry<?, Throwable> failure : failures.entrySet()) {
+      if (description.length() > 0) {
+        description.append(", ");
+      }
+      description.append(failure.getKey()).append(" (").append(failure.getValue().getMessage())
+          .append(')');
+    }
+    return description.toString();
+  }
 }
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Extracts zip entries to disk, streaming each entry through a fixed size buffer and spreading the
+ * entries over a pool of worker threads.
+ */
+public class ZipExtractor {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
+  private final int threads;
+  private final Log log;
+  private final AtomicInteger files = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * @param threads the number of worker threads, or 0 or less for one per available processor.
+   * @param log where to report the extraction time, can be null.
+   */
+  public ZipExtractor(int threads, Log log) {
+    this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.log = log;
+  }
+
+  /**
+   * @return the number of files written so far by this extractor.
+   */
+  public int getFileCount() {
+    return files.get();
+  }
+
+  /**
+   * @return the number of bytes written so far by this extractor.
+   */
+  public long getByteCount() {
+    return bytes.get();
+  }
+
+  /**
+   * Extracts the given entries of an archive under a destination directory. Directory entries
+   * are created, file entries are written, overwriting any existing file.
+   *
+   * @throws IOException if any entry fails, or points outside of the destination directory.
+   */
+  public void extract(final ZipFile archive, List<? extends ZipEntry> entries,
+      final File destination) throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    final String destinationPath = destination.getCanonicalPath() + File.separator;
+    long start = System.currentTimeMillis();
+    int workers = Math.min(threads, entries.size());
+    ExecutorService executor = Utils.newDaemonPool("zip-extractor", workers);
+    try {
+      // Keyed by the entries themselves, whose names may repeat.
+      Map<ZipEntry, Future<Void>> futures = new LinkedHashMap<>();
+      for (final ZipEntry entry : entries) {
+        futures.put(entry, executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            File target = new File(destination, entry.getName());
+            if (!target.getCanonicalPath().startsWith(destinationPath)) {
+              throw new IOException("Zip entry " + entry.getName() + " is outside of "
+                  + destination);
+            }
+            if (entry.isDirectory()) {
+              target.mkdirs();
+            } else {
+              extractEntry(archive, entry, target);
+            }
+            return null;
+          }
+        }));
+      }
+      Map<ZipEntry, Throwable> failures = Utils.awaitAll(futures);
+      if (!failures.isEmpty()) {
+        Throwable failure = failures.values().iterator().next();
+        if (failure instanceof IOException) {
+          throw (IOException) failure;
+        }
+        throw new IOException("Could not extract " + archive.getName(), failure);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting " + archive.getName(), e);
+    } finally {
+      executor.shutdownNow();
+    }
+    if (log != null) {
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      log.info("Extracted " + files.get() + " files (" + bytes.get() / 1024 / 1024 + " MB) from "
+          + new File(archive.getName()).getName() + " in " + elapsed + " ms using " + workers
+          + " threads (" + bytes.get() * 1000 / 1024 / 1024 / elapsed + " MB/s).");
+    }
+  }
+
+  private void extractEntry(ZipFile archive, ZipEntry entry, File target) throws IOException {
+    File parent = target.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Unable to create parent directories of " + target);
+    }
+    byte[] buffer = BUFFER.get();
+    long written = 0;
+    try (InputStream in = archive.getInputStream(entry);
+        OutputStream out = new FileOutputStream(target)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        written += read;
+      }
+    }
+    files.incrementAndGet();
+    bytes.addAndGet(written);
+  }
+}
@@ -3,27 +3,32 @@
  */
 package com.google.appengine.endpoints;
 
+import com.google.appengine.Utils;
+import com.google.appengine.ZipExtractor;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.shared.invoker.DefaultInvocationRequest;
 import org.apache.maven.shared.invoker.DefaultInvoker;
+import org.apache.maven.shared.invoker.InvocationOutputHandler;
 import org.apache.maven.shared.invoker.InvocationRequest;
 import org.apache.maven.shared.invoker.InvocationResult;
-import org.apache.maven.shared.invoker.Invoker;
-import org.apache.maven.shared.invoker.MavenInvocationException;
 
 /**
  * App Engine endpoints get-client-lib ... command.
@@ -42,6 +47,23 @@ public class EndpointsGetClientLib extends EndpointsMojo {
    */
   protected String client_libs_directory;
 
+  /**
+   * Number of generated client library projects built at the same time, each by its own Maven
+   * process.
+   *
+   * @parameter expression="${client_libs_build_threads}" default-value="1"
+   */
+  protected int client_libs_build_threads;
+
+  /**
+   * The Maven session, whose offline mode, local repository and settings the client library
+   * builds use.
+   *
+   * @parameter expression="${session}"
+   * @readonly
+   */
+  protected MavenSession session;
+
   @Override
   protected ArrayList<String> collectParameters(String command) {
     ArrayList<String> arguments = new ArrayList<>();
@@ -88,79 +110,135 @@ public class EndpointsGetClientLib extends EndpointsMojo {
         });
         File mavenProjectsDir = new File(client_libs_directory);
         mavenProjectsDir.mkdirs();
+        List<File> pomFiles = new ArrayList<>();
         for (File source : files) {
           File pomFile = unjarMavenProject(source, mavenProjectsDir);
           if (pomFile != null) {
-            getLog().info("BUILDING Endpoints Client Library from: " + pomFile);
-            InvocationRequest request = new DefaultInvocationRequest();
-            request.setPomFile(pomFile);
-            request.setGoals(Collections.singletonList("install"));
-            Invoker invoker = new DefaultInvoker();
-            InvocationResult result = invoker.execute(request);
-            if (result.getExitCode() != 0) {
-              throw new IllegalStateException("Build failed.");
-            }
-            getLog().info("Endpoint get client lib generation and compilation done.");
-
+            pomFiles.add(pomFile);
           }
         }
+        buildClientLibraries(pomFiles);
       }
     } catch (MojoExecutionException e) {
       getLog().error(e);
       throw new MojoExecutionException(
           "Error while generating Google App Engine endpoint get client lib", e);
-    } catch (MavenInvocationException ex) {
-      Logger.getLogger(EndpointsGetClientLib.class.getName()).log(Level.SEVERE, null, ex);
     }
   }
 
+  /**
+   * Builds the generated client library projects, client_libs_build_threads at a time, and waits
+   * for all of them even when one fails.
+   */
+  private void buildClientLibraries(List<File> pomFiles) throws MojoExecutionException {
+    if (pomFiles.isEmpty()) {
+      return;
+    }
+    int threads = Math.max(1, Math.min(client_libs_build_threads, pomFiles.size()));
+    getLog().info("Building " + pomFiles.size() + " Endpoints Client Libraries using " + threads
+        + " threads.");
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Utils.newDaemonPool("client-lib-build", threads);
+    Map<String, Future<Void>> futures = new LinkedHashMap<>();
+    try {
+      for (final File pomFile : pomFiles) {
+        final String name = pomFile.getParentFile().getName();
+        futures.put(name, executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            getLog().info("BUILDING Endpoints Client Library from: " + pomFile);
+            long buildStart = System.currentTimeMillis();
+            InvocationResult result = new DefaultInvoker().execute(createBuildRequest(pomFile,
+                name));
+            getLog().info("Built Endpoints Client Library " + name + " in "
+                + (System.currentTimeMillis() - buildStart) + " ms.");
+            if (result.getExitCode() != 0) {
+              throw new MojoExecutionException("exit code " + result.getExitCode());
+            }
+            return null;
+          }
+        }));
+      }
+
+      Map<String, Throwable> failures = Utils.awaitAll(futures);
+      for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+        getLog().error("Error: building " + failure.getKey() + ": "
+            + failure.getValue().getMessage());
+      }
+      if (!failures.isEmpty()) {
+        throw new MojoExecutionException("Error: building the Endpoints Client Libraries "
+            + Utils.describeFailures(failures));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while building the client libraries.", e);
+    } finally {
+      executor.shutdownNow();
+    }
+    getLog().info("Endpoint get client lib generation and compilation done in "
+        + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  /**
+   * The install of one client library project, in batch mode, with the offline mode, local
+   * repository and settings of this build so that it reuses what this build already resolved,
+   * its output prefixed with the name of the library.
+   */
+  private InvocationRequest createBuildRequest(File pomFile, final String name) {
+    InvocationRequest request = new DefaultInvocationRequest();
+    request.setPomFile(pomFile);
+    request.setGoals(Collections.singletonList("install"));
+    request.setInteractive(false);
+    if (session != null) {
+      MavenExecutionRequest execution = session.getRequest();
+      request.setOffline(session.isOffline());
+      if (execution.getLocalRepositoryPath() != null) {
+        request.setLocalRepositoryDirectory(execution.getLocalRepositoryPath());
+      }
+      if (execution.getUserSettingsFile() != null && execution.getUserSettingsFile().isFile()) {
+        request.setUserSettingsFile(execution.getUserSettingsFile());
+      }
+      if (execution.getGlobalSettingsFile() != null
+          && execution.getGlobalSettingsFile().isFile()) {
+        request.setGlobalSettingsFile(execution.getGlobalSettingsFile());
+      }
+    }
+    InvocationOutputHandler output = new InvocationOutputHandler() {
+      @Override
+      public void consumeLine(String line) {
+        getLog().info("[" + name + "] " + line);
+      }
+    };
+    request.setOutputHandler(output);
+    request.setErrorHandler(output);
+    return request;
+  }
+
   /*
   * Un-jar the jar file, and potentially, returns the pom.xml file if it exists 
   * in the jar file.
   */
   private File unjarMavenProject(File jar, File destdir) {
-    File pomFile = null;
-    JarFile jarfile;
-    try {
-      jarfile = new JarFile(jar);
-    } catch (IOException ex) {
-      Logger.getLogger(EndpointsGetClientLib.class.getName()).log(Level.SEVERE, null, ex);
-      return pomFile;
-    }
-
-    Enumeration<JarEntry> enu = jarfile.entries();
-    while (enu.hasMoreElements()) {
-      InputStream is = null;
-      try {
-        JarEntry je = enu.nextElement();
-        File fl = new File(destdir, je.getName());
-        if (fl.getName().equals("pom.xml")) {
-          pomFile = fl;
-        }
-        if (!fl.exists()) {
-          fl.getParentFile().mkdirs();
-          fl = new java.io.File(destdir, je.getName());
-        }
-        if (je.isDirectory()) {
-          continue;
-        }
-        is = jarfile.getInputStream(je);
-        FileOutputStream fo = new FileOutputStream(fl);
-        while (is.available() > 0) {
-          fo.write(is.read());
-        }
-      } catch (IOException ex) {
-        Logger.getLogger(EndpointsGetClientLib.class.getName()).log(Level.SEVERE, null, ex);
-      } finally {
-        try {
-          if (is != null) {
-            is.close();
+    try (ZipFile archive = new ZipFile(jar)) {
+      List<? extends ZipEntry> entries = Collections.list(archive.entries());
+      new ZipExtractor(0, getLog()).extract(archive, entries, destdir);
+      // The pom.xml closest to the root is the one of the client library project.
+      File pomFile = null;
+      int depth = Integer.MAX_VALUE;
+      for (ZipEntry entry : entries) {
+        String name = entry.getName();
+        if (!entry.isDirectory() && (name.equals("pom.xml") || name.endsWith("/pom.xml"))) {
+          int entryDepth = name.split("/").length;
+          if (entryDepth < depth) {
+            pomFile = new File(destdir, name);
+            depth = entryDepth;
           }
-        } catch (IOException ex) {
-          Logger.getLogger(EndpointsGetClientLib.class.getName()).log(Level.SEVERE, null, ex);
         }
       }
+      return pomFile;
+    } catch (IOException ex) {
+      Logger.getLogger(EndpointsGetClientLib.class.getName()).log(Level.SEVERE, null, ex);
+      return null;
     }
-    return pomFile;
   }
 }
@@ -3,9 +3,15 @@
  */
 package com.google.appengine.endpoints;
 
+import com.google.appengine.Utils;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
@@ -18,6 +24,16 @@ import org.apache.maven.plugin.MojoFailureException;
  */
 public class EndpointsGetDiscoveryDoc extends EndpointsMojo {
 
+  private static final String[] FORMATS = {"rest", "rpc"};
+
+  /**
+   * Generate the rest and rpc discovery docs at the same time, each in its own thread, instead of
+   * one after the other.
+   *
+   * @parameter expression="${discovery_doc_concurrent}" default-value="false"
+   */
+  protected boolean discovery_doc_concurrent;
+
   @Override
   protected ArrayList<String> collectParameters(String command) {
     ArrayList<String> arguments = new ArrayList<>();
@@ -42,13 +58,59 @@ public class EndpointsGetDiscoveryDoc extends EndpointsMojo {
       getLog().info("No Endpoints classes detected.");
       return;
     }
-    String rest[] = {"-f", "rest"};
-    executeEndpointsCommand("get-discovery-doc", rest,
-        classNames.toArray(new String[classNames.size()]));
-    String rpc[] = {"-f", "rpc"};
-    executeEndpointsCommand("get-discovery-doc", rpc,
-        classNames.toArray(new String[classNames.size()]));
-    getLog().info("Endpoints discovery doc generation done.");
+    // The class path is assembled once for both formats.
+    List<String> common = collectParameters("get-discovery-doc");
+    for (String className : classNames) {
+      getLog().info("Using Class Name:" + className);
+    }
+    Map<String, List<String>> commands = new LinkedHashMap<>();
+    for (String format : FORMATS) {
+      List<String> arguments = new ArrayList<>(common);
+      arguments.add("-f");
+      arguments.add(format);
+      arguments.addAll(classNames);
+      commands.put(format, arguments);
+    }
+    long start = System.currentTimeMillis();
+    if (discovery_doc_concurrent) {
+      runConcurrently(commands);
+    } else {
+      for (List<String> arguments : commands.values()) {
+        runEndpointsCommand(arguments);
+      }
+    }
+    getLog().info("Endpoints discovery doc generation done in "
+        + (System.currentTimeMillis() - start) + " ms.");
+  }
 
+  /**
+   * Runs each format in its own thread, and waits for all of them even when one fails.
+   */
+  private void runConcurrently(Map<String, List<String>> commands)
+      throws MojoExecutionException {
+    ExecutorService executor = Utils.newDaemonPool("discovery-doc", commands.size());
+    Map<String, Future<Void>> futures = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<String, List<String>> command : commands.entrySet()) {
+        final List<String> arguments = command.getValue();
+        futures.put(command.getKey(), executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws MojoExecutionException {
+            runEndpointsCommand(arguments);
+            return null;
+          }
+        }));
+      }
+      Map<String, Throwable> failures = Utils.awaitAll(futures);
+      if (!failures.isEmpty()) {
+        throw new MojoExecutionException("Error: generating the discovery docs "
+            + Utils.describeFailures(failures));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while generating the discovery docs.", e);
+    } finally {
+      executor.shutdownNow();
+    }
   }
 }
@@ -105,6 +105,13 @@ public abstract class EndpointsMojo extends AbstractMojo {
       arguments.add(param);
       getLog().info("Using Class Name:" + param);
     }
+    runEndpointsCommand(arguments);
+  }
+
+  /**
+   * Runs the endpoints tool with complete arguments, the action first.
+   */
+  protected void runEndpointsCommand(List<String> arguments) throws MojoExecutionException {
     try {
       getLog().info("Executing endpoints Command=" + arguments);
       EndpointsTool.main(arguments.toArray(new String[arguments.size()]));
@@ -5,7 +5,10 @@ package com.google.appengine.gcloudapp;
 
 import static com.google.common.base.Charsets.UTF_8;
 
+import com.google.appengine.BuildMetrics;
+import com.google.appengine.SdkContext;
 import com.google.appengine.SdkResolver;
+import com.google.appengine.StagingService;
 import com.google.appengine.Utils;
 import com.google.appengine.repackaged.com.google.common.io.Files;
 import com.google.appengine.tools.admin.AppCfg;
@@ -16,6 +19,9 @@ import com.google.apphosting.utils.config.AppEngineWebXmlReader;
 import com.google.apphosting.utils.config.EarHelper;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,20 +31,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.model.Plugin;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.eclipse.aether.RepositorySystem;
@@ -138,8 +150,9 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
   protected String docker_build;
 
   /**
-   * The directory for the Staging phase. It has to be under target/ and is deleted at each run or
-   * deploy command.
+   * The directory for the Staging phase. It has to be under target/. It is updated in place when
+   * only application files changed since the last staging, and recreated when the
+   * appengine-web.xml or the staging flags changed.
    *
    * @parameter expression="${gcloud.staging_directory}" default-value="${project.build.directory}/appengine-staging"
    */
@@ -241,7 +254,185 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
    * @parameter expression="${gcloud.gcloud_app_prefix}"
    */
   protected String gcloud_app_prefix;
-  
+
+  /**
+   * Number of threads used to unpack the App Engine SDK the first time it is needed. Default is
+   * one thread per available processor.
+   *
+   * @parameter expression="${gcloud.sdk_extraction_threads}" default-value="0"
+   */
+  protected int sdk_extraction_threads;
+
+  /**
+   * Number of minutes the newest App Engine SDK version, looked up for -SNAPSHOT versions of this
+   * plugin, is cached before the remote repositories are queried again. 0 disables the cache.
+   *
+   * @parameter expression="${gcloud.sdk_version_cache_ttl}" default-value="1440"
+   */
+  protected long sdk_version_cache_ttl;
+
+  /**
+   * Only use the cached newest App Engine SDK version, without querying the remote repositories.
+   *
+   * @parameter expression="${gcloud.sdk_version_offline}" default-value="false"
+   */
+  protected boolean sdk_version_offline;
+
+  /**
+   * Only unpack the parts of the App Engine SDK the goal needs up front, the other parts being
+   * unpacked the first time they are used.
+   *
+   * @parameter expression="${gcloud.sdk_lazy_extraction}" default-value="false"
+   */
+  protected boolean sdk_lazy_extraction;
+
+  /**
+   * Additional parts of the App Engine SDK to unpack up front when sdk_lazy_extraction is set, as
+   * path prefixes relative to the SDK root, for example lib/opt/. A '!' in front excludes the
+   * prefix instead.
+   *
+   * @parameter
+   */
+  protected List<String> sdk_includes;
+
+  /**
+   * Number of lines of subprocess output buffered while waiting to be written to the Maven log.
+   *
+   * @parameter expression="${gcloud.log_buffer_size}" default-value=10000
+   */
+  protected int log_buffer_size;
+
+  /**
+   * What to do with the subprocess output when the buffer is full because the Maven log cannot
+   * keep up: DROP the new lines, SAMPLE them (keep one in 100), or SPILL them to log_spill_file.
+   *
+   * @parameter expression="${gcloud.log_overflow_policy}" default-value="SPILL"
+   */
+  protected String log_overflow_policy;
+
+  /**
+   * File receiving the subprocess output that did not fit in the buffer with the SPILL overflow
+   * policy.
+   *
+   * @parameter expression="${gcloud.log_spill_file}" default-value="${project.build.directory}/gcloud-output-overflow.log"
+   */
+  protected String log_spill_file;
+
+  /**
+   * File receiving the subprocess output instead of the Maven log, which then only shows a
+   * summary of the lines written.
+   *
+   * @parameter expression="${gcloud.log_file}"
+   */
+  protected String log_file;
+
+  /**
+   * Size in megabytes after which the log_file is rotated, 0 for no limit.
+   *
+   * @parameter expression="${gcloud.log_file_max_size}" default-value=100
+   */
+  protected long log_file_max_size;
+
+  /**
+   * Minutes after which the log_file is rotated, 0 for no limit.
+   *
+   * @parameter expression="${gcloud.log_file_rotation_minutes}" default-value=0
+   */
+  protected long log_file_rotation_minutes;
+
+  /**
+   * Number of rotated log files kept, named log_file.1 (the most recent) to log_file.N.
+   *
+   * @parameter expression="${gcloud.log_file_max_files}" default-value=10
+   */
+  protected int log_file_max_files;
+
+  /**
+   * Write the log_file as JSON lines with the timestamp, stream, module and message of each line.
+   *
+   * @parameter expression="${gcloud.log_file_json}" default-value=false
+   */
+  protected boolean log_file_json;
+
+  /**
+   * Seconds between two summaries in the Maven log of the lines written to the log_file.
+   *
+   * @parameter expression="${gcloud.log_summary_interval}" default-value=30
+   */
+  protected long log_summary_interval;
+
+  /**
+   * Text telling, when a line of subprocess output contains it, that the dev server started by
+   * run_start is ready, without waiting for it to answer on the readiness URL.
+   *
+   * @parameter
+   */
+  protected List<String> output_readiness_patterns;
+
+  /**
+   * Text making a line of subprocess output containing it be logged as an error.
+   *
+   * @parameter
+   */
+  protected List<String> output_error_patterns;
+
+  /**
+   * Text making a line of subprocess output containing it be left out of the log. Defaults to the
+   * health check requests of the dev server.
+   *
+   * @parameter
+   */
+  protected List<String> output_suppress_patterns;
+
+  private static final List<String> DEFAULT_SUPPRESS_PATTERNS =
+      Arrays.asList("GET /_ah/health?IsLastSuccessful=yes HTTP/1.1\" 200 2");
+
+  /**
+   * Seconds to wait for the dev server started by run_start to answer HTTP requests before
+   * failing.
+   *
+   * @parameter expression="${gcloud.readiness_timeout}" default-value=300
+   */
+  protected long readiness_timeout;
+
+  /**
+   * Load the SDK staging tooling once in its own class loader and reuse it for all the stagings
+   * of the JVM, instead of running it from the plugin class path each time.
+   *
+   * @parameter expression="${gcloud.reuse_staging_tooling}" default-value=true
+   */
+  protected boolean reuse_staging_tooling;
+
+  /**
+   * How the plugin puts application files in the staging directory: COPY them, or LINK them with
+   * hard links to the files of the target directory, falling back to a copy when the file system
+   * cannot link them.
+   *
+   * @parameter expression="${gcloud.staging_link_mode}" default-value="COPY"
+   */
+  protected String staging_link_mode;
+
+  /**
+   * Where to write the time, bytes and files of each phase of the goal, as JSON. They are also
+   * logged as a table at the end of the goal. Empty to not write them.
+   *
+   * @parameter expression="${gcloud.metrics_file}" default-value="${project.build.directory}/gcloud-metrics.json"
+   */
+  protected String metrics_file;
+
+  /**
+   * The phases of this execution.
+   */
+  protected final BuildMetrics metrics = new BuildMetrics();
+
+  /**
+   * Number of modules of an EAR staged at the same time, 0 for one per available processor and 1
+   * to stage them one after the other.
+   *
+   * @parameter expression="${gcloud.staging_threads}" default-value=0
+   */
+  protected int staging_threads;
+
   protected abstract ArrayList<String> getCommand(String appDir) throws MojoExecutionException;
 
   protected ArrayList<String> setupInitialCommands(ArrayList<String> commands)
@@ -312,140 +503,102 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
     return commands;
   }
 
+  /**
+   * The last dev server started in this JVM, so that stopping it can wait for the process to exit.
+   */
+  protected static volatile Process devAppServerProcess;
+
   protected enum WaitDirective {
     WAIT_SERVER_STARTED,
     WAIT_SERVER_STOPPED
   }
 
-  protected void startCommand(File appDirFile, ArrayList<String> devAppServerCommand,
-      WaitDirective waitDirective) throws MojoExecutionException {
-    getLog().info("Running " + Joiner.on(" ").join(devAppServerCommand));
-
-    Thread stdOutThread;
-    Thread stdErrThread;
-    try {
-
-      ProcessBuilder processBuilder = new ProcessBuilder(devAppServerCommand);
-
-      processBuilder.directory(appDirFile);
-
-      processBuilder.redirectErrorStream(true);
-      Map<String, String> env = processBuilder.environment();
-      String env_docker_host = env.get("DOCKER_HOST");
-      String docker_host_tls_verify = env.get("DOCKER_TLS_VERIFY");
-      String docker_host_cert_path = env.get("DOCKER_CERT_PATH");
-      boolean userDefined = (env_docker_host != null)
-          || (docker_host_tls_verify != null)
-          || (docker_host_cert_path != null);
-
-      if (!userDefined) {
-        if ("ENV_or_default".equals(docker_host)) {
-          if (env_docker_host == null) {
-            if (env.get("DEVSHELL_CLIENT_PORT") != null) {
-              // we know we have a good chance to be in an old Google devshell:
-              env_docker_host = "unix:///var/run/docker.sock";
-            } else {
-              // we assume docker machine environment (Windows, Mac, and some Linux)
-              env_docker_host = "tcp://192.168.99.100:2376";
-            }
+  /**
+   * Creates the builder of a gcloud or dev server process, with the Docker and Python environment
+   * they need.
+   */
+  protected ProcessBuilder createProcessBuilder(File directory, List<String> command) {
+    ProcessBuilder processBuilder = new ProcessBuilder(command);
+    processBuilder.directory(directory);
+    processBuilder.redirectErrorStream(true);
+    Map<String, String> env = processBuilder.environment();
+    String env_docker_host = env.get("DOCKER_HOST");
+    String docker_host_tls_verify = env.get("DOCKER_TLS_VERIFY");
+    String docker_host_cert_path = env.get("DOCKER_CERT_PATH");
+    boolean userDefined = (env_docker_host != null)
+        || (docker_host_tls_verify != null)
+        || (docker_host_cert_path != null);
+
+    if (!userDefined) {
+      if ("ENV_or_default".equals(docker_host)) {
+        if (env_docker_host == null) {
+          if (env.get("DEVSHELL_CLIENT_PORT") != null) {
+            // we know we have a good chance to be in an old Google devshell:
+            env_docker_host = "unix:///var/run/docker.sock";
+          } else {
+            // we assume docker machine environment (Windows, Mac, and some Linux)
+            env_docker_host = "tcp://192.168.99.100:2376";
+          }
+        }
+      } else {
+        env_docker_host = docker_host;
+      }
+      env.put("DOCKER_HOST", env_docker_host);
+      // we handle TLS extra variables only when we are tcp:
+      if (env_docker_host.startsWith("tcp")) {
+        if ("ENV_or_default".equals(docker_tls_verify)) {
+          if (env.get("DOCKER_TLS_VERIFY") == null) {
+            env.put("DOCKER_TLS_VERIFY", "1");
           }
         } else {
-          env_docker_host = docker_host;
+          env.put("DOCKER_TLS_VERIFY", docker_tls_verify);
         }
-        env.put("DOCKER_HOST", env_docker_host);
-        // we handle TLS extra variables only when we are tcp:
-        if (env_docker_host.startsWith("tcp")) {
-          if ("ENV_or_default".equals(docker_tls_verify)) {
-            if (env.get("DOCKER_TLS_VERIFY") == null) {
-              env.put("DOCKER_TLS_VERIFY", "1");
+        // do not set the cert path if we do a dockerless deploy command:
+        boolean dockerless = deployCommand && remote;
+        if (!dockerless) {
+          if ("ENV_or_default".equals(docker_cert_path)) {
+            if (env.get("DOCKER_CERT_PATH") == null) {
+              env.put("DOCKER_CERT_PATH",
+                  System.getProperty("user.home")
+                      + File.separator
+                      + ".docker"
+                      + File.separator
+                      + "machine"
+                      + File.separator
+                      + "machines"
+                      + File.separator
+                      + "default"
+              );
             }
           } else {
-            env.put("DOCKER_TLS_VERIFY", docker_tls_verify);
-          }
-          // do not set the cert path if we do a dockerless deploy command:
-          boolean dockerless = deployCommand && remote;
-          if (!dockerless) {
-            if ("ENV_or_default".equals(docker_cert_path)) {
-              if (env.get("DOCKER_CERT_PATH") == null) {
-                env.put("DOCKER_CERT_PATH",
-                    System.getProperty("user.home")
-                        + File.separator
-                        + ".docker"
-                        + File.separator
-                        + "machine"
-                        + File.separator
-                        + "machines"
-                        + File.separator
-                        + "default"
-                );
-              }
-            } else {
-              env.put("DOCKER_CERT_PATH", docker_cert_path);
-            }
+            env.put("DOCKER_CERT_PATH", docker_cert_path);
           }
         }
       }
+    }
 
-      // for the docker library path:
-      env.put("PYTHONPATH", gcloud_directory + "/platform/google_appengine/lib/docker");
+    // for the docker library path:
+    env.put("PYTHONPATH", gcloud_directory + "/platform/google_appengine/lib/docker");
+    return processBuilder;
+  }
 
-      final Process devServerProcess = processBuilder.start();
+  protected void startCommand(File appDirFile, ArrayList<String> devAppServerCommand,
+      WaitDirective waitDirective) throws MojoExecutionException {
+    getLog().info("Running " + Joiner.on(" ").join(devAppServerCommand));
 
-      final CountDownLatch waitStartedLatch = new CountDownLatch(1);
+    String name = deployCommand ? "gcloud" : "devappserver";
+    try {
+      long start = System.currentTimeMillis();
+      final Process devServerProcess =
+          createProcessBuilder(appDirFile, devAppServerCommand).start();
+      if (!deployCommand) {
+        devAppServerProcess = devServerProcess;
+      }
 
-      final Scanner stdOut = new Scanner(devServerProcess.getInputStream());
-      stdOutThread = new Thread("standard-out-redirection-devappserver") {
-        @Override
-        public void run() {
-          boolean serverStartedOK = false;
-          try {
-            long healthCount = 0;
-            while (stdOut.hasNextLine() && !Thread.interrupted()) {
-              String line = stdOut.nextLine();
-              // emit this every 30 times, no need for more...
-              if (line.contains("GET /_ah/health?IsLastSuccessful=yes HTTP/1.1\" 200 2")) {
-                waitStartedLatch.countDown();
-                if (healthCount % 20 == 0) {
-                  getLog().info(line);
-                }
-                healthCount++;
-              } else if (line.contains("Dev App Server is now running")) {
-                // App Engine V1
-                waitStartedLatch.countDown();
-                serverStartedOK = true;
-
-              } else if (line.contains("INFO:oejs.Server:main: Started")) {
-                // App Engine V2
-                waitStartedLatch.countDown();
-                serverStartedOK = true;
-
-              } else {
-                getLog().info(line);
-              }
-            }
-          } finally {
-            waitStartedLatch.countDown();
-            if ((!serverStartedOK) && (!deployCommand)) {
-              throw new RuntimeException("The Java Dev Server has stopped.");
+      final LogPump pump = createLogPump(name);
+      pump.pump(devServerProcess.getInputStream(), false);
+      pump.pump(devServerProcess.getErrorStream(), true);
 
-            }
-          }
-        }
-      };
-      stdOutThread.setDaemon(true);
-      stdOutThread.start();
-
-      final Scanner stdErr = new Scanner(devServerProcess.getErrorStream());
-      stdErrThread = new Thread("standard-err-redirection-devappserver") {
-        @Override
-        public void run() {
-          while (stdErr.hasNextLine() && !Thread.interrupted()) {
-            getLog().error(stdErr.nextLine());
-          }
-        }
-      };
-      stdErrThread.setDaemon(true);
-      stdErrThread.start();
       if (waitDirective == WaitDirective.WAIT_SERVER_STOPPED) {
         Runtime.getRuntime().addShutdownHook(new Thread("destroy-devappserver") {
           @Override
@@ -456,14 +609,43 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
           }
         });
 
+        final URL readinessUrl = getReadinessUrl();
+        if (readinessUrl != null) {
+          Thread readinessThread = new Thread("readiness-probe-devappserver") {
+            @Override
+            public void run() {
+              try {
+                waitUntilReady(devServerProcess, readinessUrl, pump);
+              } catch (MojoExecutionException e) {
+                getLog().warn(e.getMessage());
+              } catch (InterruptedException e) {
+                // The build is going away.
+              }
+            }
+          };
+          readinessThread.setDaemon(true);
+          readinessThread.start();
+        }
+
         devServerProcess.waitFor();
+        pump.close();
+        recordProcess(name, start, pump);
         int status = devServerProcess.exitValue();
         if (status != 0) {
           getLog().error("Error: gcloud app command with exit code : " + status);
           throw new MojoExecutionException("Error: gcloud app command exit code is: " + status);
         }
       } else if (waitDirective == WaitDirective.WAIT_SERVER_STARTED) {
-        waitStartedLatch.await();
+        URL readinessUrl = getReadinessUrl();
+        if (readinessUrl != null) {
+          try {
+            waitUntilReady(devServerProcess, readinessUrl, pump);
+          } catch (MojoExecutionException e) {
+            devServerProcess.destroy();
+            throw e;
+          }
+          metrics.record(name + " ready", start, System.currentTimeMillis());
+        }
         getLog().info("");
         getLog().info("App Engine Dev Server started in Async mode and running.");
         getLog().info("you can stop it with this command: mvn gcloud:run_stop");
@@ -471,6 +653,158 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
     } catch (IOException e) {
       throw new MojoExecutionException("Could not start the dev app server", e);
     } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Records the phase of a process that exited, and the startup part of it, until its first line
+   * of output, which for gcloud is mostly the time Python takes to load it.
+   */
+  protected void recordProcess(String name, long start, LogPump pump) {
+    long firstLine = pump.getFirstLineMillis();
+    if (firstLine > 0) {
+      metrics.record(name + " startup", start, firstLine);
+    }
+    metrics.record(name, start, System.currentTimeMillis());
+  }
+
+  /**
+   * Logs the phases of this execution and writes them to the metrics_file.
+   *
+   * @param goal the goal executed.
+   */
+  protected void reportMetrics(String goal) {
+    metrics.log(getLog(), "gcloud:" + goal);
+    if (metrics_file == null || metrics_file.isEmpty()) {
+      return;
+    }
+    try {
+      metrics.write(new File(metrics_file), goal,
+          maven_project.getGroupId() + ":" + maven_project.getArtifactId());
+    } catch (IOException e) {
+      getLog().warn("Cannot write the metrics to " + metrics_file + ": " + e);
+    }
+  }
+
+  /**
+   * Creates the pump copying the output of a subprocess to the Maven log, configured by the
+   * log_buffer_size, log_overflow_policy and log_spill_file parameters.
+   */
+  protected LogPump createLogPump(String name) throws MojoExecutionException {
+    return createLogPump(name, getLog(), null);
+  }
+
+  /**
+   * Creates the pump copying the output of the subprocess of one module to its own log. With a
+   * log_file, the module output goes to a file of its own, named after the module.
+   *
+   * @param module the module, or null for the output of the whole project.
+   */
+  protected LogPump createLogPump(String name, Log log, String module)
+      throws MojoExecutionException {
+    LogPump.OverflowPolicy policy;
+    try {
+      policy = LogPump.OverflowPolicy.valueOf(log_overflow_policy.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException("Invalid log_overflow_policy " + log_overflow_policy
+          + ", expected DROP, SAMPLE or SPILL.");
+    }
+    if (policy == LogPump.OverflowPolicy.SPILL && log_spill_file == null) {
+      throw new MojoExecutionException("The SPILL log_overflow_policy needs a log_spill_file.");
+    }
+    MultiPatternMatcher matcher = new MultiPatternMatcher.Builder()
+        .addAll(output_readiness_patterns, LogPump.READY)
+        .addAll(output_error_patterns, LogPump.ERROR)
+        .addAll(output_suppress_patterns != null
+            ? output_suppress_patterns : DEFAULT_SUPPRESS_PATTERNS, LogPump.SUPPRESS)
+        .build();
+    LogPump pump = new LogPump(log, name, log_buffer_size, policy,
+        log_spill_file == null ? null : new File(log_spill_file)).setMatcher(matcher);
+    if (log_file != null) {
+      File file = new File(log_file);
+      if (module != null) {
+        file = new File(file.getAbsoluteFile().getParentFile(), module + "-" + file.getName());
+      }
+      try {
+        pump.setFile(new RotatingLogFile(file, log_file_max_size * 1024 * 1024,
+            log_file_rotation_minutes * 60 * 1000, log_file_max_files, log_file_json,
+            module != null ? module : maven_project.getArtifactId()), log_summary_interval * 1000);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Cannot open the log file " + file, e);
+      }
+      log.info("Writing the " + name + " output to " + file);
+    }
+    return pump;
+  }
+
+  /**
+   * @return the URL polled to know when the server started by {@link #startCommand} serves
+   *     traffic, or null to not wait for it.
+   */
+  protected URL getReadinessUrl() throws MojoExecutionException {
+    return null;
+  }
+
+  /**
+   * Polls the readiness URL, backing off up to 2 seconds between attempts, until the server
+   * answers, the process exits or readiness_timeout expires. Any HTTP answer other than a server
+   * error, or a line of output matching the output_readiness_patterns, means the server is ready.
+   */
+  protected void waitUntilReady(Process process, URL readinessUrl, LogPump pump)
+      throws MojoExecutionException, InterruptedException {
+    getLog().info("Waiting for the server to answer on " + readinessUrl);
+    long start = System.currentTimeMillis();
+    long deadline = start + readiness_timeout * 1000L;
+    long delay = 100;
+    int attempts = 0;
+    while (true) {
+      attempts++;
+      if (pump != null && pump.isReady()) {
+        getLog().info("Server ready after " + (System.currentTimeMillis() - start)
+            + " ms, a line of output matched output_readiness_patterns.");
+        return;
+      }
+      int status = probe(readinessUrl);
+      if (status > 0 && status < 500) {
+        getLog().info("Server ready on " + readinessUrl + " (HTTP " + status + ") after "
+            + (System.currentTimeMillis() - start) + " ms and " + attempts + " attempts.");
+        return;
+      }
+      try {
+        int exitValue = process.exitValue();
+        throw new MojoExecutionException("The server exited with code " + exitValue
+            + " before answering on " + readinessUrl);
+      } catch (IllegalThreadStateException e) {
+        // Still running.
+      }
+      long now = System.currentTimeMillis();
+      if (now >= deadline) {
+        throw new MojoExecutionException("The server did not answer on " + readinessUrl
+            + " within " + readiness_timeout + " seconds.");
+      }
+      Thread.sleep(Math.min(delay, deadline - now));
+      delay = Math.min(delay * 2, 2000);
+    }
+  }
+
+  /**
+   * @return the HTTP status of a GET on the URL, or -1 if the server cannot be reached.
+   */
+  private static int probe(URL url) {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(1000);
+      connection.setReadTimeout(10000);
+      connection.setUseCaches(false);
+      return connection.getResponseCode();
+    } catch (IOException e) {
+      return -1;
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
     }
   }
 
@@ -613,16 +947,41 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
    */
   protected List<RemoteRepository> pluginRepos;
 
-  protected void resolveAndSetSdkRoot() throws MojoExecutionException {
-
-    File sdkBaseDir = SdkResolver
-        .getSdk(maven_project, repoSystem, repoSession, pluginRepos, projectRepos);
+  /**
+   * Resolves the SDK, unpacking it if needed, and makes it the SDK of the JVM until the returned
+   * context is closed.
+   */
+  protected SdkContext resolveSdk() throws MojoExecutionException {
+    return resolveSdk(getLog());
+  }
 
-    try {
-      System.setProperty("appengine.sdk.root", sdkBaseDir.getCanonicalPath());
-    } catch (IOException e) {
-      throw new MojoExecutionException("Could not open SDK zip archive.", e);
+  protected SdkContext resolveSdk(Log log) throws MojoExecutionException {
+
+    SdkResolver.Options options = new SdkResolver.Options()
+        .setLog(log)
+        .setExtractionThreads(sdk_extraction_threads)
+        .setVersionCacheTtlMinutes(sdk_version_cache_ttl)
+        .setOffline(sdk_version_offline)
+        .setMetrics(metrics);
+    if (sdk_lazy_extraction) {
+      List<String> includes = new ArrayList<>(getSdkIncludes());
+      if (sdk_includes != null) {
+        includes.addAll(sdk_includes);
+      }
+      options.setIncludes(includes);
     }
+    File sdkBaseDir = SdkResolver.getSdk(maven_project, repoSystem, repoSession, options,
+        pluginRepos, projectRepos);
+
+    return SdkContext.acquire(sdkBaseDir, log);
+  }
+
+  /**
+   * @return the parts of the SDK this goal needs up front when the SDK is unpacked lazily. Staging
+   *     needs the AppCfg tooling, the runtime jars, the configuration and the XML schemas.
+   */
+  protected List<String> getSdkIncludes() {
+    return Arrays.asList("lib/", "config/", "docs/", "!lib/opt/", "!lib/java-managed-vm/");
   }
 
   /**
@@ -646,23 +1005,24 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
 
   protected File executeAppCfgStagingCommand(String appDir)
       throws MojoExecutionException {
+    return executeAppCfgStagingCommand(appDir, new File(staging_directory), getLog());
+  }
+
+  /**
+   * Stages an application in the given staging directory, reporting to the given log.
+   */
+  protected File executeAppCfgStagingCommand(String appDir, File destinationDir, Log log)
+      throws MojoExecutionException {
     ArrayList<String> arguments = new ArrayList<>();
-    File destinationDir = new File(staging_directory);
     if (!destinationDir.getParentFile().getAbsolutePath()
         .equals(maven_project.getBuild().getDirectory())) {
       throw new MojoExecutionException(
-          "Does not want to delete a directory no under the target directory" + staging_directory);
-    }
-    try {
-      FileUtils.deleteDirectory(destinationDir);
-    } catch (IOException ex) {
-      throw new MojoExecutionException("Cannot delete staging directory.", ex);
+          "Does not want to delete a directory no under the target directory" + destinationDir);
     }
 
-    getLog().info("Creating staging directory in: " + destinationDir.getAbsolutePath());
-    resolveAndSetSdkRoot();
     AppEngineWebXml appengineWeb = getAppEngineWebXml(appDir);
-    if ("true".equals(appengineWeb.getBetaSettings().get("java_quickstart"))) {
+    boolean quickstart = "true".equals(appengineWeb.getBetaSettings().get("java_quickstart"));
+    if (quickstart) {
       arguments.add("--enable_quickstart");
     }
     arguments.add("--disable_update_check");
@@ -761,32 +1121,116 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
       arguments.add("-r");
       arguments.add("java");
     }
-    arguments.add("stage");
-    arguments.add(appDir);
-    arguments.add(destinationDir.getAbsolutePath());
-    getLog().info("Running appcfg " + Joiner.on(" ").join(arguments));
-    AppCfg.main(arguments.toArray(new String[arguments.size()]));
-    // For now, treat custom as java7 so that the app run command works.
+
+    // The fingerprint and the manifest of what was staged last time live next to the staging
+    // directory, so that an unchanged application is not staged again, and a changed one only
+    // for the files that changed.
+    File fingerprintFile = new File(destinationDir.getParentFile(),
+        destinationDir.getName() + ".fingerprint");
+    File manifestFile = new File(destinationDir.getParentFile(),
+        destinationDir.getName() + ".manifest");
+    StagingManifest previousManifest = StagingManifest.read(manifestFile);
+    String stagingConfig;
+    String fingerprint;
+    String indexesHash = null;
+    BuildMetrics.Phase scan = metrics.start("staging-scan " + destinationDir.getName());
     try {
-      File fileAppYaml = new File(destinationDir, "/app.yaml");
-      String content = Files.toString(fileAppYaml, Charsets.UTF_8);
-      if (isVm && getJavaVersion().equals("1.8")) {
-        content = content.replace("runtime: java", "runtime: custom");
-        Files.write(content, fileAppYaml, Charsets.UTF_8);
-        File dockerFile = new File(destinationDir, "/Dockerfile");
-        if (!dockerFile.exists()) {
-          Files.write("FROM gcr.io/google_appengine/jetty9-compat\nADD . /app\n", dockerFile,
-              Charsets.UTF_8);
+      // datastore-indexes.xml is deleted once converted, so it is part of the configuration
+      // rather than of the manifest: a changed index stages again. When it is gone, the last
+      // staging deleted it, and the hash it recorded in the manifest stands in for it.
+      File datastoreIndexes = new File(appDirFile, DATASTORE_INDEXES);
+      if (datastoreIndexes.isFile()) {
+        indexesHash = StagingManifest.hash(datastoreIndexes);
+      } else if (previousManifest != null
+          && previousManifest.getAppDir().equals(appDirFile.getAbsolutePath())) {
+        indexesHash = previousManifest.getConsumed(DATASTORE_INDEXES);
+      }
+      stagingConfig = Hashing.sha1().hashString(Joiner.on('\n').join(arguments)
+          + "\n" + getJavaVersion()
+          + "\n" + StagingManifest.hash(new File(appDirFile, "WEB-INF/appengine-web.xml"))
+          + "\n" + Strings.nullToEmpty(indexesHash),
+          Charsets.UTF_8).toString();
+      fingerprint = StagingManifest.fingerprint(appDirFile, stagingConfig, GENERATED_BY_STAGING);
+      if (new File(destinationDir, "app.yaml").exists() && fingerprintFile.isFile()
+          && fingerprint.equals(Files.toString(fingerprintFile, Charsets.UTF_8).trim())) {
+        log.info("Application unchanged since the last staging in: "
+            + destinationDir.getAbsolutePath());
+        scan.close();
+        return destinationDir;
+      }
+    } catch (IOException ex) {
+      throw new MojoExecutionException("Error: scanning application directory " + ex);
+    }
+    fingerprintFile.delete();
+
+    StagingManifest manifest;
+    try {
+      manifest = StagingManifest.scan(appDirFile, stagingConfig, previousManifest,
+          GENERATED_BY_STAGING);
+    } catch (IOException ex) {
+      throw new MojoExecutionException("Error: scanning application directory " + ex);
+    } finally {
+      scan.close();
+    }
+    scan.addFiles(manifest.getPaths().size());
+
+    if (!stageIncrementally(previousManifest, manifest, destinationDir, quickstart, log)) {
+      // The manifest describes the staging directory about to be deleted: a failed AppCfg run
+      // must not leave it behind for the next incremental update to diff against.
+      manifestFile.delete();
+      try {
+        FileUtils.deleteDirectory(destinationDir);
+      } catch (IOException ex) {
+        throw new MojoExecutionException("Cannot delete staging directory.", ex);
+      }
+      try (SdkContext sdk = resolveSdk(log)) {
+        log.info("Creating staging directory in: " + destinationDir.getAbsolutePath());
+        arguments.add("--sdk_root=" + sdk.getRoot());
+        log.info("Running appcfg " + Joiner.on(" ").join(arguments) + " stage " + appDir + " "
+            + destinationDir.getAbsolutePath());
+        try (BuildMetrics.Phase phase = metrics.start("appcfg-stage " + destinationDir.getName())) {
+          if (reuse_staging_tooling) {
+            StagingService.get(sdk, log)
+                .stage(arguments, appDir, destinationDir.getAbsolutePath());
+          } else {
+            arguments.add("stage");
+            arguments.add(appDir);
+            arguments.add(destinationDir.getAbsolutePath());
+            AppCfg.main(arguments.toArray(new String[arguments.size()]));
+          }
+          addFiles(phase, destinationDir);
         }
       }
-    } catch (IOException ioe) {
-      System.out.println("Error " + ioe);
+      // For now, treat custom as java7 so that the app run command works.
+      try {
+        File fileAppYaml = new File(destinationDir, "/app.yaml");
+        String content = Files.toString(fileAppYaml, Charsets.UTF_8);
+        if (isVm && getJavaVersion().equals("1.8")) {
+          content = content.replace("runtime: java", "runtime: custom");
+          Files.write(content, fileAppYaml, Charsets.UTF_8);
+          File dockerFile = new File(destinationDir, "/Dockerfile");
+          if (!dockerFile.exists()) {
+            Files.write("FROM gcr.io/google_appengine/jetty9-compat\nADD . /app\n", dockerFile,
+                Charsets.UTF_8);
+          }
+        }
+      } catch (IOException ioe) {
+        System.out.println("Error " + ioe);
+      }
     }
 
+    // Only a successful staging gets a manifest and a fingerprint written below.
+    if (!new File(destinationDir, "app.yaml").exists()) {
+      throw new MojoExecutionException("Error: staging did not create "
+          + new File(destinationDir, "app.yaml"));
+    }
+
+    BuildMetrics.Phase yamlCopy = metrics.start("yaml-copy " + destinationDir.getName());
     File[] yamlFiles = new File(destinationDir, "/WEB-INF/appengine-generated").listFiles();
     for (File f : yamlFiles) {
       try {
         Files.copy(f, new File(appDir, f.getName()));
+        yamlCopy.addFiles(1).addBytesRead(f.length()).addBytesWritten(f.length());
       } catch (IOException ex) {
         throw new MojoExecutionException("Error: copying yaml file " + ex);
       }
@@ -795,18 +1239,205 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
     if (qs.exists()) {
       try {
         Files.copy(qs, new File(appDir, "/WEB-INF/quickstart-web.xml"));
+        yamlCopy.addFiles(1).addBytesRead(qs.length()).addBytesWritten(qs.length());
       } catch (IOException ex) {
         throw new MojoExecutionException("Error: copying WEB-INF/quickstart-web.xml" + ex);
       }
     }
+    yamlCopy.close();
     // Delete the xml as we have now the index.yaml equivalent
-    File index = new File(appDir, "/WEB-INF/datastore-indexes.xml");
+    File index = new File(appDir, DATASTORE_INDEXES);
     if (index.exists()) {
       index.delete();
     }
+    if (indexesHash != null) {
+      manifest.setConsumed(DATASTORE_INDEXES, indexesHash);
+    }
+    try {
+      manifest.write(manifestFile);
+      Files.write(fingerprint, fingerprintFile, Charsets.UTF_8);
+    } catch (IOException ex) {
+      log.warn("Cannot write the staging manifest " + manifestFile + ": " + ex);
+    }
     return destinationDir;
   }
 
+  /**
+   * Stages the modules of an EAR, each in its own staging directory named after the
+   * staging_directory and the module, up to staging_threads modules at the same time. The output of
+   * each module is written to the build log in one block when the module is staged.
+   */
+  protected void stageModules(List<File> moduleDirs) throws MojoExecutionException {
+    int threads = staging_threads > 0
+        ? staging_threads : Runtime.getRuntime().availableProcessors();
+    threads = Math.min(threads, moduleDirs.size());
+    if (threads <= 1) {
+      for (File moduleDir : moduleDirs) {
+        executeAppCfgStagingCommand(moduleDir.getAbsolutePath(), getModuleStagingDir(moduleDir),
+            getLog());
+      }
+      return;
+    }
+    getLog().info("Staging " + moduleDirs.size() + " modules using " + threads + " threads.");
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Utils.newDaemonPool("module-staging", threads);
+    try (AutoCloseable streams = ModuleLog.routeStandardStreams()) {
+      Map<String, Future<File>> futures = new LinkedHashMap<>();
+      for (final File moduleDir : moduleDirs) {
+        final ModuleLog log = new ModuleLog(moduleDir.getName(), getLog());
+        futures.put(moduleDir.getName(), executor.submit(new Callable<File>() {
+          @Override
+          public File call() throws MojoExecutionException {
+            log.attach();
+            try {
+              return executeAppCfgStagingCommand(moduleDir.getAbsolutePath(),
+                  getModuleStagingDir(moduleDir), log);
+            } finally {
+              log.detach();
+              log.flush();
+            }
+          }
+        }));
+      }
+      // Wait for all the modules, so that no staging is left running when one failed.
+      Map<String, Throwable> failures = Utils.awaitAll(futures);
+      for (String module : failures.keySet()) {
+        getLog().error("Staging of module " + module + " failed.");
+      }
+      if (!failures.isEmpty()) {
+        Map.Entry<String, Throwable> failure = failures.entrySet().iterator().next();
+        throw new MojoExecutionException("Staging of module " + failure.getKey() + " failed.",
+            failure.getValue());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while staging the modules.", e);
+    } catch (MojoExecutionException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new MojoExecutionException("Error: staging the modules " + e, e);
+    } finally {
+      executor.shutdownNow();
+    }
+    getLog().info("Staged " + moduleDirs.size() + " modules in "
+        + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  /**
+   * Adds the number and size of the files under a directory to a phase.
+   */
+  private static void addFiles(BuildMetrics.Phase phase, File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addFiles(phase, file);
+      } else {
+        phase.addFiles(1).addBytesWritten(file.length());
+      }
+    }
+  }
+
+  protected FileLinker.Mode getStagingLinkMode() throws MojoExecutionException {
+    try {
+      return FileLinker.parseMode(staging_link_mode);
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException("Invalid staging_link_mode " + staging_link_mode
+          + ", expected COPY or LINK.");
+    }
+  }
+
+  private File getModuleStagingDir(File moduleDir) {
+    return new File(staging_directory + "-" + moduleDir.getName());
+  }
+
+  private static final String DATASTORE_INDEXES = "WEB-INF/datastore-indexes.xml";
+
+  /**
+   * Files the staging phase itself writes back into the application directory, or deletes from
+   * it. They are not part of the application, so they are left out of the staging manifest.
+   */
+  private static final Predicate<String> GENERATED_BY_STAGING = new Predicate<String>() {
+    @Override
+    public boolean apply(String path) {
+      return path.equals(".appyamlgenerated")
+          || (path.endsWith(".yaml") && !path.contains("/"))
+          || path.equals("WEB-INF/quickstart-web.xml")
+          || path.equals(DATASTORE_INDEXES)
+          || path.equals("WEB-INF/appengine-generated");
+    }
+  };
+
+  /**
+   * Brings an existing staging directory up to date by copying the added and changed files of the
+   * application and deleting the removed ones, instead of running the whole AppCfg stage command.
+   *
+   * @return false if a full staging is needed: no previous staging, different staging flags or
+   *     configuration, or a change to a file that AppCfg transforms while staging.
+   */
+  private boolean stageIncrementally(StagingManifest previous, StagingManifest current,
+      File destinationDir, boolean quickstart, Log log) throws MojoExecutionException {
+    if (previous == null || !previous.isCompatible(current)
+        || !new File(destinationDir, "app.yaml").exists()) {
+      return false;
+    }
+    StagingManifest.Delta delta = previous.diff(current);
+    for (String path : delta.getAll()) {
+      if (requiresFullStaging(path, quickstart)) {
+        log.info("Full staging needed, " + path + " has changed.");
+        return false;
+      }
+    }
+    log.info("Updating staging directory in: " + destinationDir.getAbsolutePath()
+        + " (" + delta + " files)");
+    File appDirFile = new File(current.getAppDir());
+    try (BuildMetrics.Phase phase =
+        metrics.start("staging-incremental " + destinationDir.getName())) {
+      for (String path : delta.getRemoved()) {
+        new File(destinationDir, path).delete();
+      }
+      List<String> copies = new ArrayList<>(delta.getAdded());
+      copies.addAll(delta.getChanged());
+      FileLinker.Mode mode = getStagingLinkMode();
+      for (String path : copies) {
+        File source = new File(appDirFile, path);
+        File staged = new File(destinationDir, path);
+        // no_symlinks is not passed to AppCfg, so the staging directory holds symlinks to the
+        // application files: copying onto one would overwrite the file of the application.
+        java.nio.file.Files.deleteIfExists(staged.toPath());
+        if (!FileLinker.place(source, staged, mode)) {
+          phase.addBytesRead(source.length()).addBytesWritten(source.length());
+        }
+      }
+      phase.addFiles(delta.getAll().size());
+    } catch (IOException ex) {
+      throw new MojoExecutionException("Error: updating staging directory " + ex);
+    }
+    return true;
+  }
+
+  /**
+   * @return true if AppCfg does more than copying the given file when staging: configuration
+   *     files converted to yaml, JSPs compiled, classes or jars repackaged.
+   */
+  private boolean requiresFullStaging(String path, boolean quickstart) {
+    if (path.startsWith("WEB-INF/") && path.indexOf('/', "WEB-INF/".length()) < 0) {
+      return true;
+    }
+    if (path.endsWith(".jsp") || path.endsWith(".jspx") || path.endsWith(".tag")
+        || path.endsWith(".tagx") || path.endsWith(".tld")) {
+      return true;
+    }
+    boolean isClass = path.startsWith("WEB-INF/classes/");
+    boolean isJar = path.endsWith(".jar");
+    if (quickstart && (isClass || isJar)) {
+      return true;
+    }
+    return (enable_jar_classes && isClass) || (enable_jar_splitting && isJar);
+  }
+
   /**
    * Executes the gcloud components update app-engine-java command to install the extra component
    * needed for the Maven plugin.
@@ -828,16 +1459,11 @@ public abstract class AbstractGcloudMojo extends AbstractMojo {
 
     try {
       Process process = pb.start();
-      final Scanner stdOut = new Scanner(process.getInputStream());
-      new Thread("standard-out-redirection") {
-        @Override
-        public void run() {
-          while (stdOut.hasNextLine() && !Thread.interrupted()) {
-            getLog().info(stdOut.nextLine());
-          }
-        }
-      };
+      LogPump pump = createLogPump("gcloud-components");
+      pump.pump(process.getInputStream(), false);
+      pump.pump(process.getErrorStream(), true);
       process.waitFor();
+      pump.close();
       getLog().info("Cloud SDK app-engine-java component installed.");
 
     } catch (IOException | InterruptedException ex) {
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Puts files in a staging directory by hard linking them to their source when possible, without
+ * copying any byte, and by copying them from channel to channel otherwise.
+ *
+ * <p>A linked file shares its content with the source, so it must never be written in place: the
+ * target is always deleted before being linked or copied again.
+ */
+public final class FileLinker {
+
+  /**
+   * How files are put in the staging directory.
+   */
+  public enum Mode {
+    /** Copy the files. */
+    COPY,
+    /** Hard link the files, copying them when the file system cannot link them. */
+    LINK
+  }
+
+  private FileLinker() {
+  }
+
+  /**
+   * Parses a staging_link_mode parameter, case insensitive.
+   *
+   * @throws IllegalArgumentException for an unknown mode.
+   */
+  public static Mode parseMode(String mode) {
+    return Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Puts the source file at the target path, replacing any existing target.
+   *
+   * @return true if the target was hard linked, false if it was copied.
+   */
+  public static boolean place(File source, File target, Mode mode) throws IOException {
+    File parent = target.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Unable to create parent directories of " + target);
+    }
+    java.nio.file.Files.deleteIfExists(target.toPath());
+    if (mode == Mode.LINK) {
+      try {
+        java.nio.file.Files.createLink(target.toPath(), source.toPath());
+        return true;
+      } catch (IOException | UnsupportedOperationException e) {
+        // Another file system, or no hard link support, copy instead.
+      }
+    }
+    copy(source, target);
+    return false;
+  }
+
+  /**
+   * Copies the source file to the target, letting the operating system move the bytes between the
+   * two channels.
+   */
+  public static void copy(File source, File target) throws IOException {
+    try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      long position = 0;
+      long size;
+      while (position < (size = in.size())) {
+        position += in.transferTo(position, size - position, out);
+      }
+    }
+  }
+}
@@ -3,10 +3,30 @@
  */
 package com.google.appengine.gcloudapp;
 
+import com.google.appengine.BuildMetrics;
+import com.google.appengine.Utils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicates;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 
 /**
  * Deploy an application via gcloud deploy.
@@ -14,7 +34,7 @@ import org.apache.maven.plugin.MojoFailureException;
  * @author Ludo
  * @goal deploy
  * @execute phase="package"
- * @threadSafe false
+ * @threadSafe true
  */
 public class GCloudAppDeploy extends GCloudAppStage {
 
@@ -32,70 +52,392 @@ public class GCloudAppDeploy extends GCloudAppStage {
    */
   protected String bucket;
 
+  /**
+   * Do not run gcloud app deploy when no deployed file and no deploy flag changed since the last
+   * successful deploy, as recorded in target/gcloud-deploy-manifests.
+   *
+   * @parameter expression="${gcloud.deploy_skip_unchanged}" default-value="true"
+   */
+  protected boolean deploy_skip_unchanged;
+
+  /**
+   * Number of services of an EAR deployed at the same time, each with its own gcloud app deploy
+   * process. With more than 1, the shared configuration files (cron, queue, dispatch, index and
+   * dos) are deployed once the services are.
+   *
+   * @parameter expression="${gcloud.deploy_threads}" default-value="1"
+   */
+  protected int deploy_threads;
+
+  private static final String[] CONFIG_FILES = {
+      "cron.yaml", "queue.yaml", "dispatch.yaml", "index.yaml", "dos.yaml"};
+  private static final String DEPLOY_MANIFESTS = "gcloud-deploy-manifests";
+
+  /** The project of the active gcloud configuration, empty if unknown, null until read. */
+  private String configuredProject;
+  private static final Pattern SERVICE = Pattern.compile("^(?:service|module):\\s*(\\S+)\\s*$",
+      Pattern.MULTILINE);
+
   public GCloudAppDeploy() {
     this.deployCommand = true;
   }
 
   @Override
   public void execute() throws MojoExecutionException, MojoFailureException {
+    try {
+      deploy();
+    } finally {
+      reportMetrics("deploy");
+    }
+  }
+
+  private void deploy() throws MojoExecutionException {
     File appToDeploy = executeStaging();
+    List<String> services = new ArrayList<>();
+    List<String> configFiles = new ArrayList<>();
+    collectDeployables(appToDeploy.getAbsolutePath(), services, configFiles);
+    if (deploy_threads > 1 && services.size() > 1) {
+      deployConcurrently(appToDeploy, services, configFiles);
+      return;
+    }
     ArrayList<String> devAppServerCommand = getCommand(appToDeploy.getAbsolutePath());
+
+    Map<File, StagingManifest> manifests = new LinkedHashMap<>();
+    boolean changed;
+    try {
+      changed = scanDeployment(devAppServerCommand, manifests);
+    } catch (IOException ex) {
+      getLog().warn("Cannot compare with the last deploy, deploying everything: " + ex);
+      manifests = null;
+      changed = true;
+    }
+    if (!changed && deploy_skip_unchanged) {
+      getLog().info("Nothing changed since the last deploy, skipping gcloud app deploy. Set "
+          + "deploy_skip_unchanged to false to deploy anyway.");
+      return;
+    }
+
     startCommand(appToDeploy, devAppServerCommand, WaitDirective.WAIT_SERVER_STOPPED);
+
+    // startCommand only returns normally once gcloud exited with 0.
+    if (!Thread.currentThread().isInterrupted()) {
+      writeManifests(manifests, getLog());
+    }
+  }
+
+  private static void writeManifests(Map<File, StagingManifest> manifests, Log log) {
+    if (manifests == null) {
+      return;
+    }
+    for (Map.Entry<File, StagingManifest> manifest : manifests.entrySet()) {
+      try {
+        manifest.getKey().getParentFile().mkdirs();
+        manifest.getValue().write(manifest.getKey());
+      } catch (IOException ex) {
+        log.warn("Cannot write the deploy manifest " + manifest.getKey() + ": " + ex);
+      }
+    }
   }
 
   /**
-   * Add extra config files like dos, dispatch, index or queue to the deployment payload.
+   * Deploys each service with its own gcloud process, deploy_threads at a time, then the shared
+   * configuration files with one last process.
    */
-  private void addOtherConfigFiles(ArrayList<String> command, String appDir) {
-    if (new File(appDir + "/cron.yaml").exists()) {
-      command.add(appDir + "/cron.yaml");
+  private void deployConcurrently(final File appToDeploy, List<String> services,
+      List<String> configFiles) throws MojoExecutionException {
+    logProjectAndVersion();
+    int threads = Math.min(deploy_threads, services.size());
+    getLog().info("Deploying " + services.size() + " services using " + threads + " threads.");
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Utils.newDaemonPool("service-deploy", threads);
+    Map<String, Future<Void>> futures = new LinkedHashMap<>();
+    // Written once everything deployed, so that a failed deploy of the configuration files is
+    // retried with the services next time rather than skipped as unchanged.
+    final Map<File, StagingManifest> deployed = new ConcurrentHashMap<>();
+    try {
+      for (String appYaml : services) {
+        final String service = getService(new File(appYaml));
+        final ArrayList<String> command = buildDeployCommand(Collections.singletonList(appYaml));
+        Map<File, StagingManifest> scanned = new LinkedHashMap<>();
+        try {
+          if (!scanDeployment(command, scanned) && deploy_skip_unchanged) {
+            getLog().info("Service " + service + " did not change, skipping its deploy.");
+            continue;
+          }
+        } catch (IOException ex) {
+          getLog().warn("Cannot compare service " + service + " with its last deploy: " + ex);
+          scanned = null;
+        }
+        final Map<File, StagingManifest> manifests = scanned;
+        final Log log = ModuleLog.streaming(service, getLog());
+        futures.put(service, executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            int status = runDeploy(appToDeploy, command, service, log);
+            if (status != 0) {
+              throw new MojoExecutionException("exit code " + status);
+            }
+            if (manifests != null) {
+              deployed.putAll(manifests);
+            }
+            return null;
+          }
+        }));
+      }
+
+      // Wait for all the services, so that no deploy is left running when one failed.
+      Map<String, Throwable> failures = Utils.awaitAll(futures);
+      for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+        getLog().error("Error: deploying service " + failure.getKey() + ": "
+            + failure.getValue().getMessage());
+      }
+      if (!failures.isEmpty()) {
+        // The failed services deploy again next time, and the configuration files with them.
+        writeManifests(deployed, getLog());
+        throw new MojoExecutionException("Error: deploying services "
+            + Utils.describeFailures(failures));
+      }
+      if (futures.isEmpty()) {
+        getLog().info("Nothing changed since the last deploy, skipping gcloud app deploy. Set "
+            + "deploy_skip_unchanged to false to deploy anyway.");
+        return;
+      }
+      getLog().info("Deployed " + futures.size() + " services in "
+          + (System.currentTimeMillis() - start) + " ms.");
+
+      if (!configFiles.isEmpty()) {
+        int status = runDeploy(appToDeploy, buildDeployCommand(configFiles), "config", getLog());
+        if (status != 0) {
+          throw new MojoExecutionException("Error: deploying the configuration files, gcloud app"
+              + " deploy exit code is: " + status);
+        }
+      }
+      writeManifests(deployed, getLog());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while deploying the services.", e);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Could not run gcloud app deploy", e);
+    } finally {
+      executor.shutdownNow();
     }
-    if (new File(appDir + "/queue.yaml").exists()) {
-      command.add(appDir + "/queue.yaml");
+  }
+
+  /**
+   * Runs one gcloud app deploy process until it exits, its output going to the given log.
+   *
+   * @return the exit code of the process.
+   */
+  private int runDeploy(File appToDeploy, List<String> command, String name, Log log)
+      throws IOException, InterruptedException, MojoExecutionException {
+    log.info("Running " + Joiner.on(" ").join(command));
+    long start = System.currentTimeMillis();
+    Process process = createProcessBuilder(appToDeploy, command).start();
+    try {
+      LogPump pump = createLogPump("gcloud-" + name, log, name);
+      pump.pump(process.getInputStream(), false);
+      pump.pump(process.getErrorStream(), true);
+      int status = process.waitFor();
+      pump.close();
+      recordProcess("gcloud " + name, start, pump);
+      return status;
+    } finally {
+      // Interrupted, or the pump could not be created.
+      process.destroy();
     }
-    if (new File(appDir + "/dispatch.yaml").exists()) {
-      command.add(appDir + "/dispatch.yaml");
+  }
+
+  /**
+   * Compares each deployed service with the manifest of its last successful deploy, and reports
+   * the files added, changed and removed.
+   *
+   * @param command the gcloud app deploy command, whose app.yaml files give the services.
+   * @param manifests receives the manifest file and the new manifest of each service.
+   * @return true if any service changed or was never deployed.
+   */
+  private boolean scanDeployment(List<String> command, Map<File, StagingManifest> manifests)
+      throws IOException {
+    // A different flag, version or service set is a different deploy.
+    String config = Joiner.on(' ').join(command);
+    File manifestDir = new File(maven_project.getBuild().getDirectory(), DEPLOY_MANIFESTS);
+    String project = getDeployProject();
+    if (project == null) {
+      throw new IOException("cannot resolve the project of the active gcloud configuration");
     }
-    if (new File(appDir + "/index.yaml").exists()) {
-      command.add(appDir + "/index.yaml");
+    boolean changed = false;
+    try (BuildMetrics.Phase phase = metrics.start("deploy-scan")) {
+      changed = scanServices(command, config, manifestDir, project, manifests, phase);
     }
-    if (new File(appDir + "/dos.yaml").exists()) {
-      command.add(appDir + "/dos.yaml");
+    return changed || manifests.isEmpty();
+  }
+
+  private boolean scanServices(List<String> command, String config, File manifestDir,
+      String project, Map<File, StagingManifest> manifests, BuildMetrics.Phase phase)
+      throws IOException {
+    boolean changed = false;
+    for (String argument : command) {
+      if (!argument.endsWith("/app.yaml")) {
+        continue;
+      }
+      File appYaml = new File(argument);
+      String service = getService(appYaml);
+      File manifestFile = new File(manifestDir,
+          (project + "-" + service).replaceAll("[^A-Za-z0-9._-]", "_") + ".manifest");
+      StagingManifest previous = StagingManifest.read(manifestFile);
+      StagingManifest current = StagingManifest.scan(appYaml.getParentFile(), config, previous,
+          Predicates.<String>alwaysFalse());
+      manifests.put(manifestFile, current);
+      phase.addFiles(current.getPaths().size());
+      if (!current.isCompatible(previous)) {
+        getLog().info("Service " + service + " of project " + project + ": "
+            + current.getPaths().size() + " files, "
+            + current.getBytes(current.getPaths()) / 1024 + " KB to upload, not deployed with"
+            + " these flags before.");
+        changed = true;
+        continue;
+      }
+      StagingManifest.Delta delta = previous.diff(current);
+      List<String> uploaded = new ArrayList<>(delta.getAdded());
+      uploaded.addAll(delta.getChanged());
+      getLog().info("Service " + service + " of project " + project + " since the last deploy: "
+          + delta + ", " + current.getBytes(uploaded) / 1024 + " KB to upload.");
+      changed |= !delta.isEmpty();
     }
+    return changed;
   }
 
-  @Override
-  protected ArrayList<String> getCommand(String appDir) throws MojoExecutionException {
-    getLog().info("Running gcloud app deploy...");
+  /**
+   * @return the project gcloud deploys to: gcloud_project, or else the project of the active
+   *     gcloud configuration, null if it cannot be resolved.
+   */
+  private String getDeployProject() {
+    if (gcloud_project != null) {
+      return gcloud_project;
+    }
+    if (configuredProject == null) {
+      configuredProject = readConfiguredProject();
+    }
+    return configuredProject.isEmpty() ? null : configuredProject;
+  }
 
-    ArrayList<String> deployCommand = new ArrayList<>();
-    setupInitialCommands(deployCommand);
+  /**
+   * Asks gcloud for the project of its active configuration, which takes the
+   * CLOUDSDK_CORE_PROJECT environment variable and named configurations into account.
+   *
+   * @return the project, or an empty string if gcloud does not tell.
+   */
+  private String readConfiguredProject() {
+    File errors = null;
+    try {
+      ArrayList<String> command = setupInitialCommands(new ArrayList<String>());
+      // Drop the app command group, and the prefix before it, to reach gcloud config.
+      command.remove(command.size() - 1);
+      if (gcloud_app_prefix != null) {
+        command.remove(command.size() - 1);
+      }
+      command.add("config");
+      command.add("list");
+      command.add("--format=value(core.project)");
+      errors = File.createTempFile("gcloud-config", ".log");
+      ProcessBuilder processBuilder = createProcessBuilder(null, command);
+      processBuilder.redirectErrorStream(false);
+      processBuilder.redirectError(ProcessBuilder.Redirect.to(errors));
+      Process process = processBuilder.start();
+      String output;
+      try (InputStream in = process.getInputStream()) {
+        output = new String(ByteStreams.toByteArray(in), Charsets.UTF_8).trim();
+      }
+      if (process.waitFor() != 0 || output.isEmpty() || output.contains("\n")) {
+        return "";
+      }
+      getLog().info("Deploying to project " + output + " of the active gcloud configuration.");
+      return output;
+    } catch (IOException | MojoExecutionException ex) {
+      getLog().debug("Cannot read the gcloud project: " + ex);
+      return "";
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return "";
+    } finally {
+      if (errors != null) {
+        errors.delete();
+      }
+    }
+  }
 
-    deployCommand.add("deploy");
+  /**
+   * @return the service, or module, an app.yaml deploys, default if it does not tell.
+   */
+  private static String getService(File appYaml) throws IOException {
+    Matcher matcher = SERVICE.matcher(Files.toString(appYaml, Charsets.UTF_8));
+    return matcher.find() ? matcher.group(1) : "default";
+  }
 
+  /**
+   * Collects what to deploy from a staged application: the app.yaml of each service, and the
+   * extra config files like dos, dispatch, index or queue.
+   */
+  private void collectDeployables(String appDir, List<String> services,
+      List<String> configFiles) {
     File f = new File(appDir, "WEB-INF/appengine-web.xml");
     if (!f.exists()) {
       // it might be an app with app.yaml:
       File appyaml = new File(appDir, "app.yaml");
       if (appyaml.exists()) {
         // Point to our application
-        deployCommand.add(appDir + "/app.yaml");
-        addOtherConfigFiles(deployCommand, appDir);
+        services.add(appDir + "/app.yaml");
+        addOtherConfigFiles(configFiles, appDir);
       } else {
         // EAR project possibly, add all modules one by one:
         File ear = new File(appDir);
         for (File w : ear.listFiles()) {
           if (new File(w, "WEB-INF/appengine-web.xml").exists()) {
-            deployCommand.add(w.getAbsolutePath() + "/app.yaml");
-            addOtherConfigFiles(deployCommand, w.getAbsolutePath());
+            services.add(w.getAbsolutePath() + "/app.yaml");
+            addOtherConfigFiles(configFiles, w.getAbsolutePath());
           }
         }
       }
     } else {
       // Point to our application
-      deployCommand.add(appDir + "/app.yaml");
-      addOtherConfigFiles(deployCommand, appDir);
+      services.add(appDir + "/app.yaml");
+      addOtherConfigFiles(configFiles, appDir);
     }
+  }
+
+  /**
+   * Add extra config files like dos, dispatch, index or queue to the deployment payload.
+   */
+  private void addOtherConfigFiles(List<String> command, String appDir) {
+    for (String configFile : CONFIG_FILES) {
+      if (new File(appDir + "/" + configFile).exists()) {
+        command.add(appDir + "/" + configFile);
+      }
+    }
+  }
+
+  @Override
+  protected ArrayList<String> getCommand(String appDir) throws MojoExecutionException {
+    getLog().info("Running gcloud app deploy...");
+
+    List<String> deployables = new ArrayList<>();
+    List<String> configFiles = new ArrayList<>();
+    collectDeployables(appDir, deployables, configFiles);
+    deployables.addAll(configFiles);
+    ArrayList<String> deployCommand = buildDeployCommand(deployables);
+    logProjectAndVersion();
+    return deployCommand;
+  }
+
+  /**
+   * @return the gcloud app deploy command of the given app.yaml and config files.
+   */
+  private ArrayList<String> buildDeployCommand(List<String> deployables)
+      throws MojoExecutionException {
+    ArrayList<String> deployCommand = new ArrayList<>();
+    setupInitialCommands(deployCommand);
+
+    deployCommand.add("deploy");
+    deployCommand.addAll(deployables);
 
     // Add in additional options for starting the DevAppServer
     if (version != null) {
@@ -122,7 +464,10 @@ public class GCloudAppDeploy extends GCloudAppStage {
     } else {
       deployCommand.add("--no-promote");
     }
+    return deployCommand;
+  }
 
+  private void logProjectAndVersion() {
     String projectIdUsed = gcloud_project;
     if (projectIdUsed == null) {
       projectIdUsed = "the Cloud SDK default project";
@@ -134,7 +479,5 @@ public class GCloudAppDeploy extends GCloudAppStage {
     getLog().info("Note that the project ID and version specified in application configuration files"
         + " (e.g. app.yaml or appengine-web.xml) are ignored. The project ID is set to "
         + projectIdUsed + " and the version is set to " + versionUsed + ".");
-
-    return deployCommand;
   }
 }
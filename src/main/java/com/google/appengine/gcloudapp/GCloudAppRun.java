@@ -8,7 +8,9 @@ import com.google.appengine.repackaged.com.google.common.io.ByteStreams;
 import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
@@ -46,6 +48,13 @@ public class GCloudAppRun extends AbstractGcloudMojo {
    */
   private String host;
 
+  /**
+   * The path polled on the local web server to know when the application serves traffic.
+   *
+   * @parameter expression="${gcloud.readiness_path}" default-value="/_ah/health"
+   */
+  private String readiness_path;
+
   /**
    * The host and port on which to start the admin server (in the format host:port)
    *
@@ -53,6 +62,14 @@ public class GCloudAppRun extends AbstractGcloudMojo {
    */
   private String admin_host;
 
+  /**
+   * Maximum number of seconds to wait for a running dev server to shut down before starting or
+   * after stopping it.
+   *
+   * @parameter expression="${gcloud.shutdown_timeout}" default-value=20
+   */
+  private long shutdown_timeout;
+
   /**
    * The default location for storing application data. Can be overridden for specific kinds of data
    * using --datastore-path, --blobstore-path, and/or --logs-path
@@ -281,6 +298,8 @@ public class GCloudAppRun extends AbstractGcloudMojo {
     } catch (Exception ex) {
       getLog().error(ex);
       throw new MojoExecutionException("Execution error: " + ex);
+    } finally {
+      reportMetrics("run");
     }
   }
 
@@ -301,15 +320,18 @@ public class GCloudAppRun extends AbstractGcloudMojo {
       if (f.exists() && !isAppYamlGenerated) {
         devAppServerCommand.add(f.getAbsolutePath());
       } else {
-        boolean oneMod = false;
+        List<File> moduleDirs = new ArrayList<>();
         for (File w : appDirectory.listFiles()) {
           if (new File(w, "WEB-INF/appengine-web.xml").exists()) {
-            executeAppCfgStagingCommand(w.getAbsolutePath());
-            devAppServerCommand.add(w.getAbsolutePath());
-            oneMod = true;
+            moduleDirs.add(w);
           }
         }
-        if (!oneMod) {
+        // The dev server starts once all the modules are staged.
+        stageModules(moduleDirs);
+        for (File w : moduleDirs) {
+          devAppServerCommand.add(w.getAbsolutePath());
+        }
+        if (moduleDirs.isEmpty()) {
           executeAppCfgStagingCommand(application_directory);
           devAppServerCommand.add(appDirectory.getAbsolutePath());
 
@@ -450,25 +472,36 @@ public class GCloudAppRun extends AbstractGcloudMojo {
     return devAppServerCommand;
   }
 
+  @Override
+  protected URL getReadinessUrl() throws MojoExecutionException {
+    InetSocketAddress web = getAddress(host, 8080);
+    try {
+      return new URL("http", web.getHostString(), web.getPort(), readiness_path.startsWith("/")
+          ? readiness_path : "/" + readiness_path);
+    } catch (MalformedURLException e) {
+      throw new MojoExecutionException(
+          "URL malformed attempting to probe the devserver : " + e.getMessage());
+    }
+  }
+
+  /**
+   * Asks the dev server to quit through its admin server, then waits until the admin and web
+   * server ports are closed and the server process, when started by this build, has exited.
+   */
   protected void stopDevAppServer() throws MojoExecutionException {
+    InetSocketAddress admin = getAddress(admin_host, 8000);
+    InetSocketAddress web = getAddress(host, 8080);
     HttpURLConnection connection;
     try {
-      String ad = "localhost";
-      if (host != null) {
-        String[] parts = host.split(":");
-        ad = parts[0];
-      }
-      URL url = new URL("http", ad, 8000, "/quit");
+      URL url = new URL("http", admin.getHostString(), admin.getPort(), "/quit");
       connection = (HttpURLConnection) url.openConnection();
       connection.setDoOutput(true);
       connection.setDoInput(true);
       connection.setRequestMethod("GET");
-      ByteStreams.toByteArray(connection.getInputStream());
+      connection.setConnectTimeout(1000);
       connection.setReadTimeout(4000);
+      ByteStreams.toByteArray(connection.getInputStream());
       connection.disconnect();
-      getLog().info("Shutting down Cloud SDK Server on port " + 8000
-          + " and waiting 4 seconds...");
-      Thread.sleep(4000);
     } catch (MalformedURLException e) {
       throw new MojoExecutionException(
           "URL malformed attempting to stop the devserver : " + e.getMessage());
@@ -477,8 +510,88 @@ public class GCloudAppRun extends AbstractGcloudMojo {
           "Was not able to contact the devappserver to shut it down.  Most likely this is due to it"
               + " simply not running anymore.",
           e);
+      return;
+    }
+    getLog().info("Shutting down Cloud SDK Server on port " + admin.getPort()
+        + " and waiting up to " + shutdown_timeout + " seconds...");
+    long start = System.currentTimeMillis();
+    long deadline = start + shutdown_timeout * 1000L;
+    long delay = 50;
+    try {
+      while (isListening(admin) || isListening(web) || isRunning(devAppServerProcess)) {
+        long now = System.currentTimeMillis();
+        if (now >= deadline) {
+          getLog().warn("The Cloud SDK Server is still running after " + shutdown_timeout
+              + " seconds.");
+          return;
+        }
+        Thread.sleep(Math.min(delay, deadline - now));
+        delay = Math.min(delay * 2, 500);
+      }
     } catch (InterruptedException e) {
       Throwables.propagate(e);
     }
+    getLog().info("Cloud SDK Server stopped in " + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  /**
+   * @return the address of a host[:port] parameter, such as localhost:8080, [::1]:8080 or a bare
+   *     host, with localhost and the default port for the parts not set.
+   */
+  private static InetSocketAddress getAddress(String hostAndPort, int defaultPort)
+      throws MojoExecutionException {
+    if (hostAndPort == null) {
+      return InetSocketAddress.createUnresolved("localhost", defaultPort);
+    }
+    String host = hostAndPort.trim();
+    String port = null;
+    if (host.startsWith("[")) {
+      int end = host.indexOf(']');
+      if (end < 0 || (end + 1 < host.length() && host.charAt(end + 1) != ':')) {
+        throw new MojoExecutionException("Invalid host " + hostAndPort);
+      }
+      port = end + 1 < host.length() ? host.substring(end + 2) : null;
+      host = host.substring(1, end);
+    } else {
+      int colon = host.lastIndexOf(':');
+      // With more than one ':' and no brackets, it is an IPv6 address without a port.
+      if (colon >= 0 && host.indexOf(':') == colon) {
+        port = host.substring(colon + 1);
+        host = host.substring(0, colon);
+      }
+    }
+    int portNumber = defaultPort;
+    if (port != null) {
+      try {
+        portNumber = Integer.parseInt(port);
+      } catch (NumberFormatException e) {
+        portNumber = -1;
+      }
+      if (portNumber < 0 || portNumber > 65535) {
+        throw new MojoExecutionException("Invalid port in " + hostAndPort);
+      }
+    }
+    return InetSocketAddress.createUnresolved(host.isEmpty() ? "localhost" : host, portNumber);
+  }
+
+  private static boolean isListening(InetSocketAddress address) {
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), 200);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static boolean isRunning(Process process) {
+    if (process == null) {
+      return false;
+    }
+    try {
+      process.exitValue();
+      return false;
+    } catch (IllegalThreadStateException e) {
+      return true;
+    }
   }
 }
@@ -3,17 +3,43 @@
  */
 package com.google.appengine.gcloudapp;
 
+import com.google.appengine.BuildMetrics;
 import com.google.appengine.repackaged.com.google.common.io.Files;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.DependencyManagement;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactTypeRegistry;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.util.artifact.JavaScopes;
+import org.eclipse.aether.util.filter.DependencyFilterUtils;
 
 /**
  * Stage an application in order to be able to call the Cloud SDK deploy command.
@@ -21,11 +47,37 @@ import org.apache.maven.plugin.MojoFailureException;
  * @author Ludo
  * @goal stage
  * @execute phase="package"
- * @threadSafe false
+ * @threadSafe true
  */
 public class GCloudAppStage extends AbstractGcloudMojo {
 
 
+  private static final String STAGED_SUFFIX = ".staged";
+  private static final String STAGED_CHECKSUM = "sha1";
+  private static final String STAGED_SIZE = "size";
+  private static final String STAGED_TIME = "lastModified";
+  private static final String STAGED_PATH = "staged.path";
+  private static final String STAGED_COPY_SIZE = "staged.size";
+  private static final String STAGED_COPY_TIME = "staged.lastModified";
+
+  private static final String LIBS_DIR = "libs";
+
+  /**
+   * Stage a jar application as layers for Docker to cache: the runtime dependencies in a libs
+   * directory, which rarely changes, and the application jar on its own, with a Dockerfile adding
+   * them in that order and running the Main-Class of the application jar.
+   *
+   * @parameter expression="${gcloud.layered_staging}" default-value="false"
+   */
+  protected boolean layered_staging;
+
+  /**
+   * The base image of the Dockerfile generated by layered_staging.
+   *
+   * @parameter expression="${gcloud.layered_base_image}" default-value="gcr.io/google_appengine/openjdk8"
+   */
+  protected String layered_base_image;
+
   public GCloudAppStage() {
     this.deployCommand = true;
   }
@@ -60,11 +112,12 @@ public class GCloudAppStage extends AbstractGcloudMojo {
         throw new MojoExecutionException("Error: creating default app.yaml " + ex);
       }
     }
+    FileLinker.Mode mode = getStagingLinkMode();
     if (appengineConfigDir.exists()) {
       for (File file : appengineConfigDir.listFiles()) {
         if (!file.getName().equals("app.yaml")) { // app.yaml was treated before
           try {
-            Files.copy(file, new File(stagingDir, file.getName()));
+            FileLinker.place(file, new File(stagingDir, file.getName()), mode);
           } catch (IOException ex) {
             throw new MojoExecutionException("Error: copying "
                     + file.getAbsolutePath()
@@ -76,6 +129,23 @@ public class GCloudAppStage extends AbstractGcloudMojo {
     }
 
     File targetDir = new File(maven_project.getBuild().getDirectory());
+    if (layered_staging) {
+      stageLayers(new File(targetDir, maven_project.getBuild().getFinalName() + "." + packaging),
+          stagingDir, mode);
+      return stagingDir;
+    }
+    File libsDir = new File(stagingDir, LIBS_DIR);
+    if (libsDir.isDirectory()) {
+      // Left by a previous layered staging, along with its Dockerfile.
+      try {
+        FileUtils.deleteDirectory(libsDir);
+      } catch (IOException ex) {
+        throw new MojoExecutionException("Error: deleting " + libsDir + " " + ex);
+      }
+      if (!new File(appengineConfigDir, "Dockerfile").exists()) {
+        new File(stagingDir, "Dockerfile").delete();
+      }
+    }
     File artifactToDeploy = new File(targetDir, maven_project.getBuild().getFinalName()
         + "-jar-with-dependencies." + packaging);
     if (!artifactToDeploy.exists()) {
@@ -89,24 +159,7 @@ public class GCloudAppStage extends AbstractGcloudMojo {
     }
     if (artifactToDeploy.exists()) {
       try {
-        File stagingArtifact = new File(stagingDir, artifactToDeploy.getName());
-        Files.copy(artifactToDeploy, stagingArtifact);
-
-        if (!System.getProperty("os.name").contains("Windows")) {
-          // Woraround possible permission issues, see 
-          // https://github.com/jboss-dockerfiles/wildfly/issues/19
-          // Smaller image is done outside of Docker.
-          Set<PosixFilePermission> perms = new HashSet<>();
-          // add owners permission
-          perms.add(PosixFilePermission.OWNER_READ);
-          perms.add(PosixFilePermission.OWNER_WRITE);
-          // add group permissions
-          perms.add(PosixFilePermission.GROUP_READ);
-          // add others permissions
-          perms.add(PosixFilePermission.OTHERS_READ);
-
-          java.nio.file.Files.setPosixFilePermissions(stagingArtifact.toPath(), perms);
-        }
+        stageArtifact(artifactToDeploy, new File(stagingDir, artifactToDeploy.getName()), mode);
       } catch (IOException ex) {
         throw new MojoExecutionException("Error: copying artifact" + ex);
       }
@@ -114,11 +167,232 @@ public class GCloudAppStage extends AbstractGcloudMojo {
     return stagingDir;
   }
 
+  /**
+   * Resolves the compile and runtime dependency jars of the project. The goals do not require
+   * dependency resolution from Maven, so that only layered_staging pays for resolving, and maybe
+   * downloading, the dependencies.
+   *
+   * @return the jars by their name in the libs directory, where the group id keeps apart the jars
+   *     of different groups with the same file name.
+   */
+  private Map<String, File> resolveRuntimeJars() throws MojoExecutionException {
+    ArtifactTypeRegistry types = repoSession.getArtifactTypeRegistry();
+    CollectRequest collect = new CollectRequest();
+    for (Dependency dependency : maven_project.getDependencies()) {
+      collect.addDependency(RepositoryUtils.toDependency(dependency, types));
+    }
+    DependencyManagement management = maven_project.getDependencyManagement();
+    if (management != null) {
+      for (Dependency dependency : management.getDependencies()) {
+        collect.addManagedDependency(RepositoryUtils.toDependency(dependency, types));
+      }
+    }
+    collect.setRepositories(projectRepos);
+    DependencyRequest request = new DependencyRequest(collect,
+        DependencyFilterUtils.classpathFilter(JavaScopes.RUNTIME));
+    List<ArtifactResult> results;
+    try {
+      results = repoSystem.resolveDependencies(repoSession, request).getArtifactResults();
+    } catch (DependencyResolutionException ex) {
+      throw new MojoExecutionException("Error: resolving the runtime dependencies of "
+          + maven_project.getId() + " " + ex.getMessage(), ex);
+    }
+    Map<String, File> jars = new LinkedHashMap<>();
+    for (ArtifactResult result : results) {
+      Artifact artifact = result.getArtifact();
+      if (artifact != null && artifact.getFile() != null
+          && "jar".equals(artifact.getExtension())) {
+        jars.put(artifact.getGroupId() + "-" + artifact.getFile().getName(), artifact.getFile());
+      }
+    }
+    return jars;
+  }
+
+  /**
+   * Stages the application jar and its runtime dependencies as separate Docker layers.
+   */
+  private void stageLayers(File applicationJar, File stagingDir, FileLinker.Mode mode)
+      throws MojoExecutionException {
+    if (!applicationJar.isFile()) {
+      throw new MojoExecutionException("layered_staging needs the application jar "
+          + applicationJar + ", run the package phase first.");
+    }
+    String mainClass;
+    try (JarFile jar = new JarFile(applicationJar)) {
+      Manifest manifest = jar.getManifest();
+      mainClass = manifest == null ? null
+          : manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+    } catch (IOException ex) {
+      throw new MojoExecutionException("Error: reading the manifest of " + applicationJar + " "
+          + ex);
+    }
+    if (mainClass == null) {
+      throw new MojoExecutionException("layered_staging needs a Main-Class in the manifest of "
+          + applicationJar);
+    }
+
+    long start = System.currentTimeMillis();
+    File libsDir = new File(stagingDir, LIBS_DIR);
+    libsDir.mkdirs();
+    Set<String> libs = new HashSet<>();
+    int copied = 0;
+    try (BuildMetrics.Phase phase = metrics.start("layered-staging")) {
+      for (Map.Entry<String, File> jar : resolveRuntimeJars().entrySet()) {
+        String name = jar.getKey();
+        File file = jar.getValue();
+        libs.add(name);
+        File lib = new File(libsDir, name);
+        if (lib.isFile() && lib.length() == file.length()
+            && lib.lastModified() == file.lastModified()) {
+          continue;
+        }
+        if (!FileLinker.place(file, lib, mode)) {
+          lib.setLastModified(file.lastModified());
+          phase.addBytesRead(file.length()).addBytesWritten(file.length());
+        }
+        phase.addFiles(1);
+        copied++;
+      }
+      for (File lib : libsDir.listFiles()) {
+        if (!libs.contains(lib.getName())) {
+          lib.delete();
+        }
+      }
+      // Remove a monolithic artifact left by a previous staging, it would be uploaded for nothing.
+      String finalName = maven_project.getBuild().getFinalName();
+      String packaging = maven_project.getPackaging();
+      new File(stagingDir, finalName + "-jar-with-dependencies." + packaging).delete();
+      new File(stagingDir, finalName + "-fat." + packaging).delete();
+
+      stageArtifact(applicationJar, new File(stagingDir, applicationJar.getName()), mode);
+    } catch (IOException ex) {
+      throw new MojoExecutionException("Error: staging the application layers " + ex);
+    }
+    getLog().info("Staged " + libs.size() + " dependencies in " + libsDir + ", " + copied
+        + " of them updated, in " + (System.currentTimeMillis() - start) + " ms.");
+
+    try {
+      // The layers run on a custom runtime.
+      File appYaml = new File(stagingDir, "app.yaml");
+      String content = Files.toString(appYaml, Charsets.UTF_8);
+      String custom = content.replaceAll("(?m)^runtime:\\s*java\\s*$", "runtime: custom");
+      if (!custom.equals(content)) {
+        Files.write(custom, appYaml, Charsets.UTF_8);
+      }
+      File dockerFile = new File(stagingDir, "Dockerfile");
+      if (new File(appengine_config_directory, "Dockerfile").exists()) {
+        getLog().info("Using the Dockerfile of " + appengine_config_directory
+            + " instead of a layered one.");
+      } else {
+        String jar = "/app/" + applicationJar.getName();
+        Files.write("FROM " + layered_base_image + "\n"
+            + "COPY " + LIBS_DIR + " /app/" + LIBS_DIR + "\n"
+            + "COPY " + applicationJar.getName() + " " + jar + "\n"
+            + "CMD [\"java\", \"-cp\", \"" + jar + ":/app/" + LIBS_DIR + "/*\", \""
+            + mainClass + "\"]\n", dockerFile, Charsets.UTF_8);
+      }
+    } catch (IOException ex) {
+      throw new MojoExecutionException("Error: creating the layered Dockerfile " + ex);
+    }
+  }
+
+  /**
+   * Puts the artifact in the staging directory, unless the staged copy is already identical.
+   *
+   * <p>What was staged is recorded next to the artifact, outside of the staging directory: the
+   * size, time and checksum of the artifact and the size and time of the staged copy. The artifact
+   * is only hashed again when its size or time changed, and the copy is skipped when the checksum
+   * is the same and the staged copy was not touched since.
+   */
+  private void stageArtifact(File artifact, File stagingArtifact, FileLinker.Mode mode)
+      throws IOException {
+    try (BuildMetrics.Phase phase = metrics.start("artifact-staging")) {
+      stageArtifact(artifact, stagingArtifact, mode, phase);
+    }
+  }
+
+  private void stageArtifact(File artifact, File stagingArtifact, FileLinker.Mode mode,
+      BuildMetrics.Phase phase) throws IOException {
+    long start = System.currentTimeMillis();
+    File record = new File(artifact.getParentFile(), artifact.getName() + STAGED_SUFFIX);
+    Properties staged = new Properties();
+    if (record.isFile()) {
+      try (InputStream in = new FileInputStream(record)) {
+        staged.load(in);
+      } catch (IOException | IllegalArgumentException e) {
+        staged.clear();
+      }
+    }
+    String size = Long.toString(artifact.length());
+    String lastModified = Long.toString(artifact.lastModified());
+    String checksum = staged.getProperty(STAGED_CHECKSUM);
+    if (checksum == null || !size.equals(staged.getProperty(STAGED_SIZE))
+        || !lastModified.equals(staged.getProperty(STAGED_TIME))) {
+      checksum = com.google.common.io.Files.hash(artifact, Hashing.sha1()).toString();
+      phase.addBytesRead(artifact.length());
+    }
+    if (stagingArtifact.isFile()
+        && checksum.equals(staged.getProperty(STAGED_CHECKSUM))
+        && stagingArtifact.getAbsolutePath().equals(staged.getProperty(STAGED_PATH))
+        && Long.toString(stagingArtifact.length()).equals(staged.getProperty(STAGED_COPY_SIZE))
+        && Long.toString(stagingArtifact.lastModified())
+            .equals(staged.getProperty(STAGED_COPY_TIME))) {
+      getLog().info("Staged artifact " + stagingArtifact.getName() + " is up to date, checked in "
+          + (System.currentTimeMillis() - start) + " ms.");
+      return;
+    }
+
+    boolean linked = FileLinker.place(artifact, stagingArtifact, mode);
+    phase.addFiles(1);
+    if (!linked) {
+      phase.addBytesRead(artifact.length()).addBytesWritten(artifact.length());
+    }
+
+    // A linked artifact shares its permissions with the built one, leave them alone.
+    if (!linked && !System.getProperty("os.name").contains("Windows")) {
+      // Woraround possible permission issues, see
+      // https://github.com/jboss-dockerfiles/wildfly/issues/19
+      // Smaller image is done outside of Docker.
+      Set<PosixFilePermission> perms = new HashSet<>();
+      // add owners permission
+      perms.add(PosixFilePermission.OWNER_READ);
+      perms.add(PosixFilePermission.OWNER_WRITE);
+      // add group permissions
+      perms.add(PosixFilePermission.GROUP_READ);
+      // add others permissions
+      perms.add(PosixFilePermission.OTHERS_READ);
+
+      java.nio.file.Files.setPosixFilePermissions(stagingArtifact.toPath(), perms);
+    }
+
+    staged.setProperty(STAGED_CHECKSUM, checksum);
+    staged.setProperty(STAGED_SIZE, size);
+    staged.setProperty(STAGED_TIME, lastModified);
+    staged.setProperty(STAGED_PATH, stagingArtifact.getAbsolutePath());
+    staged.setProperty(STAGED_COPY_SIZE, Long.toString(stagingArtifact.length()));
+    staged.setProperty(STAGED_COPY_TIME, Long.toString(stagingArtifact.lastModified()));
+    try (OutputStream out = new FileOutputStream(record)) {
+      staged.store(out, "Artifact staged by the gcloud-maven-plugin");
+    } catch (IOException e) {
+      // Only a cache, the artifact is copied again next time.
+      record.delete();
+    }
+
+    long millis = Math.max(System.currentTimeMillis() - start, 1);
+    long megabytes = artifact.length() / (1024 * 1024);
+    getLog().info((linked ? "Linked " : "Copied ") + artifact.getName() + " (" + megabytes
+        + " MB) to the staging directory in " + millis + " ms"
+        + (linked ? "." : ", " + megabytes * 1000 / millis + " MB/s."));
+  }
+
   @Override
   public void execute() throws MojoExecutionException, MojoFailureException {
-    File stagingDir = executeStaging();
-    getLog().info("Stagin directory updated at: " + stagingDir.getAbsolutePath());
-
+    try {
+      File stagingDir = executeStaging();
+      getLog().info("Stagin directory updated at: " + stagingDir.getAbsolutePath());
+    } finally {
+      reportMetrics("stage");
+    }
   }
 
   protected File executeStaging() throws MojoExecutionException {
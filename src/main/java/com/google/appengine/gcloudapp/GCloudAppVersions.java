@@ -3,6 +3,7 @@ package com.google.appengine.gcloudapp;
 import com.google.appengine.repackaged.net.sourceforge.yamlbeans.YamlException;
 import com.google.appengine.repackaged.net.sourceforge.yamlbeans.YamlReader;
 import com.google.apphosting.utils.config.AppEngineWebXml;
+import com.google.common.base.Joiner;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -38,10 +39,14 @@ public abstract class GCloudAppVersions extends AbstractGcloudMojo {
   public void execute() throws MojoExecutionException, MojoFailureException {
     getLog().info("");
 
-    ArrayList<String> devAppServerCommand = createCommand(
-        getApplicationDirectory(), getSubCommand());
-    startCommand(new File(getApplicationDirectory()), devAppServerCommand,
-        AbstractGcloudMojo.WaitDirective.WAIT_SERVER_STOPPED);
+    try {
+      ArrayList<String> devAppServerCommand = createCommand(
+          getApplicationDirectory(), getSubCommand());
+      startCommand(new File(getApplicationDirectory()), devAppServerCommand,
+          AbstractGcloudMojo.WaitDirective.WAIT_SERVER_STOPPED);
+    } finally {
+      reportMetrics("versions " + Joiner.on(' ').join(getSubCommand()));
+    }
   }
 
   protected ArrayList<String> createCommand(String appDir, String[] subCommand)
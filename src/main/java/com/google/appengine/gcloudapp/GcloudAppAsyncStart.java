@@ -41,9 +41,13 @@ public class GcloudAppAsyncStart extends GCloudAppRun {
           "The application directory is not a directory : " + application_directory);
     }
 
-    ArrayList<String> devAppServerCommand = getCommand(application_directory);
+    try {
+      ArrayList<String> devAppServerCommand = getCommand(application_directory);
 
-    startCommand(appDirFile, devAppServerCommand, WaitDirective.WAIT_SERVER_STARTED);
+      startCommand(appDirFile, devAppServerCommand, WaitDirective.WAIT_SERVER_STARTED);
+    } finally {
+      reportMetrics("run_start");
+    }
   }
 
 }
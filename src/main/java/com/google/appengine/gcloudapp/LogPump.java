@@ -0,0 +1,382 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Copies the output of a subprocess to the Maven log without slowing the subprocess down.
+ *
+ * <p>One thread per stream decodes the lines into a bounded buffer, and a single thread writes
+ * them to the log in batches. When the log cannot keep up and the buffer is full, the overflow
+ * policy decides what happens to the new lines, so that the subprocess is never blocked on its
+ * output pipe.
+ */
+class LogPump {
+
+  /**
+   * What to do with a line read while the buffer is full.
+   */
+  enum OverflowPolicy {
+    /** Forget the line. */
+    DROP,
+    /** Forget the line, except one line in {@link #SAMPLE_RATE} which waits for room. */
+    SAMPLE,
+    /** Append the line to the spill file instead of the log. */
+    SPILL
+  }
+
+  static final int SAMPLE_RATE = 100;
+
+  /** Kind of the patterns of lines telling the server is ready. */
+  static final int READY = 1;
+  /** Kind of the patterns of lines logged as errors. */
+  static final int ERROR = 2;
+  /** Kind of the patterns of lines not logged. */
+  static final int SUPPRESS = 4;
+
+  private static final int BATCH_SIZE = 512;
+
+  /**
+   * One line of output, with the stream it comes from.
+   */
+  private static class Line {
+
+    final String text;
+    final boolean error;
+    final boolean stderr;
+
+    Line(String text, boolean error, boolean stderr) {
+      this.text = text;
+      this.error = error;
+      this.stderr = stderr;
+    }
+  }
+
+  private final Log log;
+  private final BlockingQueue<Line> buffer;
+  private final OverflowPolicy policy;
+  private final File spillFile;
+  private final String name;
+  private final List<Thread> readers = new ArrayList<>();
+  private final AtomicLong linesRead = new AtomicLong();
+  private final AtomicLong linesDropped = new AtomicLong();
+  private final AtomicLong linesSpilled = new AtomicLong();
+  private final AtomicLong overflows = new AtomicLong();
+  private final AtomicLong linesSuppressed = new AtomicLong();
+  private final AtomicLong firstLineAt = new AtomicLong();
+  private final CountDownLatch ready = new CountDownLatch(1);
+  private MultiPatternMatcher matcher;
+  private RotatingLogFile file;
+  private long summaryIntervalMillis;
+  private Writer spill;
+  private Thread flusher;
+  private volatile boolean closing;
+
+  /**
+   * @param log where the lines go.
+   * @param name used to name the pump threads.
+   * @param capacity the number of lines the buffer holds.
+   * @param policy what to do with the lines read while the buffer is full.
+   * @param spillFile where the overflowing lines go with the SPILL policy.
+   */
+  LogPump(Log log, String name, int capacity, OverflowPolicy policy, File spillFile) {
+    this.log = log;
+    this.name = name;
+    this.buffer = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+    this.policy = policy;
+    this.spillFile = spillFile;
+    if (policy == OverflowPolicy.SPILL && spillFile == null) {
+      throw new IllegalArgumentException("The SPILL overflow policy needs a spill file.");
+    }
+  }
+
+  /**
+   * Sets the patterns looked for in each line: {@link #READY} patterns mark the server ready,
+   * {@link #ERROR} patterns log the line as an error and {@link #SUPPRESS} patterns count the line
+   * as read without logging it. Must be called before any stream is pumped.
+   */
+  LogPump setMatcher(MultiPatternMatcher matcher) {
+    this.matcher = matcher.isEmpty() ? null : matcher;
+    return this;
+  }
+
+  /**
+   * Writes the lines to a file instead of the log, the log only getting a summary of the lines
+   * written at most once per interval. Must be called before any stream is pumped.
+   */
+  LogPump setFile(RotatingLogFile file, long summaryIntervalMillis) {
+    this.file = file;
+    this.summaryIntervalMillis = summaryIntervalMillis;
+    return this;
+  }
+
+  /**
+   * @return true once a line matching a {@link #READY} pattern was read.
+   */
+  boolean isReady() {
+    return ready.getCount() == 0;
+  }
+
+  /**
+   * Starts pumping the lines of a stream, until its end.
+   *
+   * @param error true to log the lines of the stream as errors.
+   */
+  synchronized void pump(InputStream in, final boolean error) {
+    if (flusher == null) {
+      flusher = new Thread(name + "-log-flusher") {
+        @Override
+        public void run() {
+          flush();
+        }
+      };
+      flusher.setDaemon(true);
+      flusher.start();
+    }
+    final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(in, Charset.defaultCharset()));
+    Thread thread = new Thread(name + (error ? "-stderr" : "-stdout") + "-reader") {
+      @Override
+      public void run() {
+        read(reader, error);
+      }
+    };
+    thread.setDaemon(true);
+    readers.add(thread);
+    thread.start();
+  }
+
+  long getLinesRead() {
+    return linesRead.get();
+  }
+
+  long getLinesDropped() {
+    return linesDropped.get();
+  }
+
+  long getLinesSpilled() {
+    return linesSpilled.get();
+  }
+
+  long getLinesSuppressed() {
+    return linesSuppressed.get();
+  }
+
+  /**
+   * @return the time the first line was read at, 0 if none was read yet.
+   */
+  long getFirstLineMillis() {
+    return firstLineAt.get();
+  }
+
+  /**
+   * Waits for the end of all the pumped streams and for their lines to be logged.
+   */
+  void close() throws InterruptedException {
+    List<Thread> started;
+    synchronized (this) {
+      started = new ArrayList<>(readers);
+    }
+    for (Thread reader : started) {
+      reader.join();
+    }
+    closing = true;
+    if (flusher != null) {
+      flusher.join();
+    }
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        log.warn("Cannot close the log file " + file.getFile() + ": " + e);
+      }
+    }
+    synchronized (this) {
+      if (spill != null) {
+        try {
+          spill.close();
+        } catch (IOException e) {
+          log.warn("Cannot close the spill file " + spillFile + ": " + e);
+        }
+      }
+    }
+    if (linesDropped.get() > 0 || linesSpilled.get() > 0 || linesSuppressed.get() > 0) {
+      log.info("Read " + linesRead.get() + " lines of output, suppressed "
+          + linesSuppressed.get() + ", dropped " + linesDropped.get()
+          + (spillFile != null ? ", spilled " + linesSpilled.get() + " to " + spillFile : "")
+          + ".");
+    }
+  }
+
+  private void read(BufferedReader reader, boolean error) {
+    try {
+      String text;
+      while ((text = reader.readLine()) != null) {
+        if (linesRead.getAndIncrement() == 0) {
+          firstLineAt.compareAndSet(0, System.currentTimeMillis());
+        }
+        boolean errorLine = error;
+        if (matcher != null) {
+          int kinds = matcher.match(text);
+          if ((kinds & READY) != 0) {
+            ready.countDown();
+          }
+          if ((kinds & SUPPRESS) != 0) {
+            linesSuppressed.incrementAndGet();
+            continue;
+          }
+          errorLine |= (kinds & ERROR) != 0;
+        }
+        Line line = new Line(text, errorLine, error);
+        if (!buffer.offer(line)) {
+          overflow(line);
+        }
+      }
+    } catch (IOException e) {
+      // The process is gone.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void overflow(Line line) throws InterruptedException {
+    long overflow = overflows.getAndIncrement();
+    switch (policy) {
+      case SAMPLE:
+        if (overflow % SAMPLE_RATE == 0) {
+          buffer.put(line);
+          return;
+        }
+        linesDropped.incrementAndGet();
+        return;
+      case SPILL:
+        if (spill(line)) {
+          linesSpilled.incrementAndGet();
+        } else {
+          linesDropped.incrementAndGet();
+        }
+        return;
+      default:
+        linesDropped.incrementAndGet();
+    }
+  }
+
+  private synchronized boolean spill(Line line) {
+    try {
+      if (spill == null) {
+        spill = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(spillFile, true), UTF_8));
+      }
+      spill.write(line.text);
+      spill.write('\n');
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private synchronized void flushSpill() {
+    if (spill != null) {
+      try {
+        spill.flush();
+      } catch (IOException e) {
+        log.warn("Cannot write to the spill file " + spillFile + ": " + e);
+      }
+    }
+  }
+
+  private void flush() {
+    List<Line> batch = new ArrayList<>(BATCH_SIZE);
+    long reportedDropped = 0;
+    long reportedSpilled = 0;
+    long written = 0;
+    long errors = 0;
+    long summarizedAt = System.currentTimeMillis();
+    try {
+      while (true) {
+        Line first = buffer.poll(200, TimeUnit.MILLISECONDS);
+        long now = System.currentTimeMillis();
+        if (written > 0 && (now - summarizedAt >= summaryIntervalMillis
+            || (first == null && closing))) {
+          log.info(written + " lines of output (" + errors + " errors) written to "
+              + file.getFile() + " in the last " + (now - summarizedAt) / 1000 + " s.");
+          written = 0;
+          errors = 0;
+          summarizedAt = now;
+        }
+        if (first == null) {
+          if (closing && buffer.isEmpty()) {
+            return;
+          }
+        } else {
+          batch.add(first);
+          buffer.drainTo(batch, BATCH_SIZE - 1);
+        }
+        long dropped = linesDropped.get();
+        long spilled = linesSpilled.get();
+        if (dropped != reportedDropped || spilled != reportedSpilled) {
+          log.warn("Output is faster than the log: " + (dropped - reportedDropped)
+              + " lines dropped, " + (spilled - reportedSpilled) + " lines spilled.");
+          if (spilled != reportedSpilled) {
+            // A pump nobody closes, such as the one of run_start, must not lose its spill file.
+            flushSpill();
+          }
+          reportedDropped = dropped;
+          reportedSpilled = spilled;
+        }
+        // Lines of the batch already written to the log file, not to be logged again.
+        int next = 0;
+        if (file != null) {
+          try {
+            for (; next < batch.size(); next++) {
+              Line line = batch.get(next);
+              file.write(line.text, line.stderr ? "stderr" : "stdout");
+              written++;
+              if (line.error) {
+                errors++;
+              }
+            }
+            file.flush();
+          } catch (IOException e) {
+            log.warn("Cannot write to the log file " + file.getFile() + ", logging instead: " + e);
+            file = null;
+            written = 0;
+          }
+        }
+        if (file == null) {
+          for (Line line : batch.subList(next, batch.size())) {
+            if (line.error) {
+              log.error(line.text);
+            } else {
+              log.info(line.text);
+            }
+          }
+        }
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
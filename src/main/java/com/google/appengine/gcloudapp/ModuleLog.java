@@ -0,0 +1,327 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Log of one module processed concurrently with other modules. Its messages, and what its threads
+ * print to the standard streams while {@link #routeStandardStreams()} is active, are kept aside
+ * and written to the build log in one block when the module is done, prefixed with the module
+ * name. A {@link #streaming} log writes each prefixed message right away instead, for modules
+ * whose progress matters more than a contiguous block.
+ */
+class ModuleLog implements Log {
+
+  private static final int DEBUG = 0;
+  private static final int INFO = 1;
+  private static final int WARN = 2;
+  private static final int ERROR = 3;
+
+  /**
+   * The module output of the current thread. Inherited, so that the threads a module starts print
+   * to the same module.
+   */
+  private static final ThreadLocal<OutputStream> CURRENT = new InheritableThreadLocal<>();
+
+  /** Guards the routing of the standard streams, shared by all the routing callers. */
+  private static final Object ROUTING_LOCK = new Object();
+  private static int routingCount;
+  private static PrintStream originalOut;
+  private static PrintStream originalErr;
+
+  private final String prefix;
+  private final Log target;
+  private final List<Integer> levels = new ArrayList<>();
+  private final List<String> messages = new ArrayList<>();
+  private final boolean buffered;
+
+  ModuleLog(String module, Log target) {
+    this(module, target, true);
+  }
+
+  private ModuleLog(String module, Log target, boolean buffered) {
+    this.prefix = "[" + module + "] ";
+    this.target = target;
+    this.buffered = buffered;
+  }
+
+  /**
+   * @return a log writing the messages of a module to the build log as they come, prefixed with
+   *     the module name.
+   */
+  static ModuleLog streaming(String module, Log target) {
+    return new ModuleLog(module, target, false);
+  }
+
+  /**
+   * Redirects what the calling thread, and the threads it starts, print to the standard streams
+   * into this log, until {@link #detach()} is called.
+   */
+  void attach() {
+    CURRENT.set(new LineOutputStream(this));
+  }
+
+  void detach() {
+    OutputStream out = CURRENT.get();
+    CURRENT.remove();
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // Nothing to release.
+      }
+    }
+  }
+
+  /**
+   * Writes everything logged so far to the build log, without other threads' messages in between.
+   */
+  void flush() {
+    synchronized (target) {
+      synchronized (this) {
+        for (int i = 0; i < messages.size(); i++) {
+          write(levels.get(i), messages.get(i));
+        }
+        levels.clear();
+        messages.clear();
+      }
+    }
+  }
+
+  private void write(int level, String content) {
+    String message = prefix + content;
+    switch (level) {
+      case DEBUG:
+        target.debug(message);
+        break;
+      case WARN:
+        target.warn(message);
+        break;
+      case ERROR:
+        target.error(message);
+        break;
+      default:
+        target.info(message);
+    }
+  }
+
+  /**
+   * Replaces the standard streams with streams writing to the log attached to the current thread,
+   * or to the original streams for threads without a module log. Closing the returned object
+   * restores the original streams.
+   *
+   * <p>Several mojos may stage modules at the same time in a parallel build: the routing streams
+   * are installed by the first caller and the original streams restored when the last caller
+   * closes its object.
+   */
+  static AutoCloseable routeStandardStreams() {
+    synchronized (ROUTING_LOCK) {
+      if (routingCount++ == 0) {
+        originalOut = System.out;
+        originalErr = System.err;
+        System.setOut(new PrintStream(new RoutingOutputStream(originalOut), true));
+        System.setErr(new PrintStream(new RoutingOutputStream(originalErr), true));
+      }
+    }
+    return new AutoCloseable() {
+      private boolean closed;
+
+      @Override
+      public void close() {
+        synchronized (ROUTING_LOCK) {
+          if (closed) {
+            return;
+          }
+          closed = true;
+          if (--routingCount == 0) {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+            originalOut = null;
+            originalErr = null;
+          }
+        }
+      }
+    };
+  }
+
+  private synchronized void add(int level, CharSequence content, Throwable error) {
+    StringBuilder message = new StringBuilder();
+    if (content != null) {
+      message.append(content);
+    }
+    if (error != null) {
+      StringWriter trace = new StringWriter();
+      error.printStackTrace(new PrintWriter(trace));
+      if (message.length() > 0) {
+        message.append(System.lineSeparator());
+      }
+      message.append(trace);
+    }
+    if (!buffered) {
+      synchronized (target) {
+        write(level, message.toString());
+      }
+      return;
+    }
+    levels.add(level);
+    messages.add(message.toString());
+  }
+
+  @Override
+  public boolean isDebugEnabled() {
+    return target.isDebugEnabled();
+  }
+
+  @Override
+  public void debug(CharSequence content) {
+    add(DEBUG, content, null);
+  }
+
+  @Override
+  public void debug(CharSequence content, Throwable error) {
+    add(DEBUG, content, error);
+  }
+
+  @Override
+  public void debug(Throwable error) {
+    add(DEBUG, null, error);
+  }
+
+  @Override
+  public boolean isInfoEnabled() {
+    return target.isInfoEnabled();
+  }
+
+  @Override
+  public void info(CharSequence content) {
+    add(INFO, content, null);
+  }
+
+  @Override
+  public void info(CharSequence content, Throwable error) {
+    add(INFO, content, error);
+  }
+
+  @Override
+  public void info(Throwable error) {
+    add(INFO, null, error);
+  }
+
+  @Override
+  public boolean isWarnEnabled() {
+    return target.isWarnEnabled();
+  }
+
+  @Override
+  public void warn(CharSequence content) {
+    add(WARN, content, null);
+  }
+
+  @Override
+  public void warn(CharSequence content, Throwable error) {
+    add(WARN, content, error);
+  }
+
+  @Override
+  public void warn(Throwable error) {
+    add(WARN, null, error);
+  }
+
+  @Override
+  public boolean isErrorEnabled() {
+    return target.isErrorEnabled();
+  }
+
+  @Override
+  public void error(CharSequence content) {
+    add(ERROR, content, null);
+  }
+
+  @Override
+  public void error(CharSequence content, Throwable error) {
+    add(ERROR, content, error);
+  }
+
+  @Override
+  public void error(Throwable error) {
+    add(ERROR, null, error);
+  }
+
+  /**
+   * Turns the bytes printed by a module into info messages, one per line.
+   */
+  private static class LineOutputStream extends OutputStream {
+
+    private final ModuleLog log;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    LineOutputStream(ModuleLog log) {
+      this.log = log;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      if (b == '\n') {
+        flushLine();
+      } else if (b != '\r') {
+        line.write(b);
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (line.size() > 0) {
+        flushLine();
+      }
+    }
+
+    private void flushLine() {
+      log.info(line.toString());
+      line.reset();
+    }
+  }
+
+  /**
+   * Sends the bytes written by a thread to the module log attached to it, if any.
+   */
+  private static class RoutingOutputStream extends OutputStream {
+
+    private final OutputStream original;
+
+    RoutingOutputStream(OutputStream original) {
+      this.original = original;
+    }
+
+    private OutputStream current() {
+      OutputStream out = CURRENT.get();
+      return out != null ? out : original;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      current().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      current().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      current().flush();
+    }
+  }
+}
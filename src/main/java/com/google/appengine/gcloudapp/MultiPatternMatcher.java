@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+
+/**
+ * Finds which of a set of literal patterns occur in a line of text, in a single pass over the
+ * characters and without allocating.
+ *
+ * <p>The patterns are compiled into an Aho-Corasick automaton, turned into a transition table over
+ * the characters used by the patterns. Each pattern has a kind, a bit, and matching a line returns
+ * the kinds of all the patterns it contains.
+ */
+public final class MultiPatternMatcher {
+
+  /**
+   * Collects the patterns to compile.
+   */
+  public static class Builder {
+
+    private final List<String> patterns = new ArrayList<>();
+    private final List<Integer> kinds = new ArrayList<>();
+
+    /**
+     * @param pattern the literal text to find, ignored if empty.
+     * @param kind the bit returned when a line contains the pattern.
+     */
+    public Builder add(String pattern, int kind) {
+      if (pattern != null && !pattern.isEmpty()) {
+        patterns.add(pattern);
+        kinds.add(kind);
+      }
+      return this;
+    }
+
+    /**
+     * Adds several patterns of the same kind, ignoring a null list.
+     */
+    public Builder addAll(List<String> patterns, int kind) {
+      if (patterns != null) {
+        for (String pattern : patterns) {
+          add(pattern, kind);
+        }
+      }
+      return this;
+    }
+
+    public MultiPatternMatcher build() {
+      return new MultiPatternMatcher(patterns, kinds);
+    }
+  }
+
+  private static final int ASCII = 128;
+
+  /** Character class of each ASCII character, 0 for characters not used by any pattern. */
+  private final int[] asciiClasses = new int[ASCII];
+  /** The other characters used by the patterns, sorted, their classes following the ASCII ones. */
+  private final char[] otherChars;
+  /** Number of character classes, the width of a row of the transition table. */
+  private final int width;
+  /** Next state for each state and character class. */
+  private final int[] transitions;
+  /** Kinds of the patterns ending in each state, or in the states it falls back to. */
+  private final int[] outputs;
+
+  private MultiPatternMatcher(List<String> patterns, List<Integer> kinds) {
+    TreeSet<Character> others = new TreeSet<>();
+    int asciiCount = 0;
+    for (String pattern : patterns) {
+      for (int i = 0; i < pattern.length(); i++) {
+        char c = pattern.charAt(i);
+        if (c < ASCII) {
+          if (asciiClasses[c] == 0) {
+            asciiClasses[c] = ++asciiCount;
+          }
+        } else {
+          others.add(c);
+        }
+      }
+    }
+    otherChars = new char[others.size()];
+    int index = 0;
+    for (char c : others) {
+      otherChars[index++] = c;
+    }
+    width = 1 + asciiCount + otherChars.length;
+
+    // The trie of the patterns.
+    List<Map<Integer, Integer>> children = new ArrayList<>();
+    List<Integer> trieOutputs = new ArrayList<>();
+    children.add(new HashMap<Integer, Integer>());
+    trieOutputs.add(0);
+    for (int p = 0; p < patterns.size(); p++) {
+      String pattern = patterns.get(p);
+      int state = 0;
+      for (int i = 0; i < pattern.length(); i++) {
+        int c = classOf(pattern.charAt(i));
+        Integer next = children.get(state).get(c);
+        if (next == null) {
+          next = children.size();
+          children.add(new HashMap<Integer, Integer>());
+          trieOutputs.add(0);
+          children.get(state).put(c, next);
+        }
+        state = next;
+      }
+      trieOutputs.set(state, trieOutputs.get(state) | kinds.get(p));
+    }
+
+    // Breadth first, each state falls back to the longest suffix of its text that is in the
+    // trie, and a missing transition follows the one of the fallback state. Characters not used
+    // by any pattern, class 0, always go back to the start.
+    int states = children.size();
+    transitions = new int[states * width];
+    outputs = new int[states];
+    int[] fallbacks = new int[states];
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (Map.Entry<Integer, Integer> child : children.get(0).entrySet()) {
+      transitions[child.getKey()] = child.getValue();
+      queue.add(child.getValue());
+    }
+    outputs[0] = trieOutputs.get(0);
+    while (!queue.isEmpty()) {
+      int state = queue.remove();
+      int fallback = fallbacks[state];
+      outputs[state] = trieOutputs.get(state) | outputs[fallback];
+      System.arraycopy(transitions, fallback * width, transitions, state * width, width);
+      for (Map.Entry<Integer, Integer> child : children.get(state).entrySet()) {
+        fallbacks[child.getValue()] = transitions[fallback * width + child.getKey()];
+        transitions[state * width + child.getKey()] = child.getValue();
+        queue.add(child.getValue());
+      }
+    }
+  }
+
+  private int classOf(char c) {
+    if (c < ASCII) {
+      return asciiClasses[c];
+    }
+    int index = Arrays.binarySearch(otherChars, c);
+    return index < 0 ? 0 : 1 + (width - 1 - otherChars.length) + index;
+  }
+
+  /**
+   * @return the kinds of all the patterns found in the text, or 0 if none is found.
+   */
+  public int match(CharSequence text) {
+    int state = 0;
+    int found = 0;
+    for (int i = 0; i < text.length(); i++) {
+      state = transitions[state * width + classOf(text.charAt(i))];
+      found |= outputs[state];
+    }
+    return found;
+  }
+
+  /**
+   * @return the kinds of all the patterns found in the characters, or 0 if none is found.
+   */
+  public int match(char[] chars, int offset, int length) {
+    int state = 0;
+    int found = 0;
+    for (int i = offset; i < offset + length; i++) {
+      state = transitions[state * width + classOf(chars[i])];
+      found |= outputs[state];
+    }
+    return found;
+  }
+
+  /**
+   * @return true if no pattern was added.
+   */
+  public boolean isEmpty() {
+    return outputs.length == 1 && outputs[0] == 0;
+  }
+}
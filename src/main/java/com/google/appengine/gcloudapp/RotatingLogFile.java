@@ -0,0 +1,152 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import com.google.appengine.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * File receiving the output of a subprocess, as plain lines or as JSON lines with the time, the
+ * stream and the module of each line. Lines are gathered in a buffer written to the file channel
+ * when full. The file is rotated when it reaches a size or an age: file becomes file.1, file.1
+ * becomes file.2, and so on, the oldest being deleted.
+ */
+class RotatingLogFile implements AutoCloseable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  private final int maxFiles;
+  private final boolean json;
+  private final String module;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  private final StringBuilder line = new StringBuilder();
+  private final SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+  private FileChannel channel;
+  private long size;
+  private long openedAt;
+
+  /**
+   * @param file the file written, rotated files being named after it.
+   * @param maxBytes the size after which the file is rotated, 0 for no limit.
+   * @param maxAgeMillis the age after which the file is rotated, 0 for no limit.
+   * @param maxFiles the number of rotated files kept.
+   * @param json true to write JSON lines instead of the plain output.
+   * @param module the module written in the JSON lines.
+   */
+  RotatingLogFile(File file, long maxBytes, long maxAgeMillis, int maxFiles, boolean json,
+      String module) throws IOException {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.maxFiles = maxFiles;
+    this.json = json;
+    this.module = module;
+    timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+    open();
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Writes one line of output.
+   *
+   * @param text the line, without its line terminator.
+   * @param stream the stream the line comes from, for example stdout.
+   */
+  synchronized void write(String text, String stream) throws IOException {
+    line.setLength(0);
+    if (json) {
+      long now = System.currentTimeMillis();
+      line.append("{\"timestamp\":\"").append(timestamp.format(new Date(now)))
+          .append("\",\"stream\":");
+      Utils.appendJsonString(line, stream).append(",\"module\":");
+      Utils.appendJsonString(line, module).append(",\"message\":");
+      Utils.appendJsonString(line, text).append('}');
+    } else {
+      line.append(text);
+    }
+    line.append('\n');
+    byte[] bytes = line.toString().getBytes(UTF_8);
+    if (buffer.remaining() < bytes.length) {
+      flush();
+    }
+    if (bytes.length > buffer.capacity()) {
+      writeFully(ByteBuffer.wrap(bytes));
+    } else {
+      buffer.put(bytes);
+    }
+    size += bytes.length;
+    if ((maxBytes > 0 && size >= maxBytes)
+        || (maxAgeMillis > 0 && System.currentTimeMillis() - openedAt >= maxAgeMillis)) {
+      rotate();
+    }
+  }
+
+  /**
+   * Writes the buffered lines to the file.
+   */
+  synchronized void flush() throws IOException {
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void writeFully(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  private void open() throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create the directory of " + file);
+    }
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    size = channel.size();
+    openedAt = System.currentTimeMillis();
+  }
+
+  private void rotate() throws IOException {
+    flush();
+    channel.close();
+    new File(file.getPath() + "." + maxFiles).delete();
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      File rotated = new File(file.getPath() + "." + i);
+      if (rotated.exists()) {
+        rotated.renameTo(new File(file.getPath() + "." + (i + 1)));
+      }
+    }
+    if (maxFiles > 0) {
+      file.renameTo(new File(file.getPath() + ".1"));
+    } else {
+      file.delete();
+    }
+    open();
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ */
+package com.google.appengine.gcloudapp;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import com.google.common.base.Predicate;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of an exploded application directory as it was last handed to the AppCfg stage
+ * command: relative path, size, last modified time and content hash of every file.
+ *
+ * <p>Comparing two snapshots tells which files were added, changed or removed since the last
+ * staging, so that only those need to be reflected in the staging directory. The deploy goal keeps
+ * the same snapshot of each service it deployed successfully.
+ */
+public class StagingManifest {
+
+  private static final String HEADER = "# gcloud-maven-plugin staging manifest";
+  private static final String APP_DIR_KEY = "appDir=";
+  private static final String CONFIG_KEY = "config=";
+  private static final String CONSUMED_KEY = "consumed=";
+
+  /**
+   * Size, timestamp and hash of one file of the application.
+   */
+  static class Entry {
+
+    final long size;
+    final long lastModified;
+    final String hash;
+
+    Entry(long size, long lastModified, String hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Files that differ between two manifests, as relative paths.
+   */
+  public static class Delta {
+
+    final List<String> added = new ArrayList<>();
+    final List<String> changed = new ArrayList<>();
+    final List<String> removed = new ArrayList<>();
+
+    public List<String> getAdded() {
+      return added;
+    }
+
+    public List<String> getChanged() {
+      return changed;
+    }
+
+    public List<String> getRemoved() {
+      return removed;
+    }
+
+    /**
+     * @return all the added, changed and removed paths.
+     */
+    public List<String> getAll() {
+      List<String> all = new ArrayList<>(added);
+      all.addAll(changed);
+      all.addAll(removed);
+      return all;
+    }
+
+    public boolean isEmpty() {
+      return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+      return added.size() + " added, " + changed.size() + " changed, " + removed.size()
+          + " removed";
+    }
+  }
+
+  private final String appDir;
+  private final String config;
+  private final Map<String, Entry> entries;
+  private final Map<String, String> consumed = new TreeMap<>();
+
+  private StagingManifest(String appDir, String config, Map<String, Entry> entries) {
+    this.appDir = appDir;
+    this.config = config;
+    this.entries = entries;
+  }
+
+  public String getAppDir() {
+    return appDir;
+  }
+
+  /**
+   * @return the key describing the staging flags and configuration this manifest was staged with.
+   */
+  public String getConfig() {
+    return config;
+  }
+
+  /**
+   * @return the hash recorded for a file that staging deleted from the application directory, or
+   *     null if none was recorded.
+   */
+  public String getConsumed(String path) {
+    return consumed.get(path);
+  }
+
+  /**
+   * Records the hash of a file that staging deleted from the application directory once it was
+   * used, such as datastore-indexes.xml, so that the next staging can tell it was not changed.
+   */
+  public void setConsumed(String path, String hash) {
+    consumed.put(path, hash);
+  }
+
+  /**
+   * @return the relative paths of all the files in this manifest, sorted.
+   */
+  public List<String> getPaths() {
+    return new ArrayList<>(entries.keySet());
+  }
+
+  /**
+   * @return the total size of the given files of this manifest, ignoring unknown paths.
+   */
+  public long getBytes(List<String> paths) {
+    long bytes = 0;
+    for (String path : paths) {
+      Entry entry = entries.get(path);
+      if (entry != null) {
+        bytes += entry.size;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Scans the application directory. Files whose size and timestamp did not move since the
+   * previous manifest keep their recorded hash, so only new or touched files are read.
+   *
+   * @param appDir the exploded application directory.
+   * @param config key of the staging flags and configuration used for this staging.
+   * @param previous the manifest of the last staging, or null.
+   * @param excluded relative paths that are not part of the application (generated files).
+   */
+  public static StagingManifest scan(File appDir, String config, StagingManifest previous,
+      Predicate<String> excluded) throws IOException {
+    Map<String, Entry> entries = new TreeMap<>();
+    Map<String, Entry> known = previous == null
+        ? Collections.<String, Entry>emptyMap() : previous.entries;
+    scanDirectory(appDir, "", known, excluded, entries);
+    return new StagingManifest(appDir.getAbsolutePath(), config, entries);
+  }
+
+  private static void scanDirectory(File dir, String prefix, Map<String, Entry> known,
+      Predicate<String> excluded, Map<String, Entry> entries) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list directory " + dir);
+    }
+    for (File file : files) {
+      String path = prefix + file.getName();
+      if (excluded.apply(path)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        scanDirectory(file, path + "/", known, excluded, entries);
+        continue;
+      }
+      long size = file.length();
+      long lastModified = file.lastModified();
+      Entry old = known.get(path);
+      if (old != null && old.size == size && old.lastModified == lastModified) {
+        entries.put(path, old);
+      } else {
+        entries.put(path, new Entry(size, lastModified, hash(file)));
+      }
+    }
+  }
+
+  /**
+   * Computes a digest of the paths, sizes and timestamps of the application files, without
+   * reading them. The configuration files directly under WEB-INF are small and may be rewritten by
+   * the build with the same content, so they are digested by content instead.
+   *
+   * @param appDir the exploded application directory.
+   * @param config key of the staging flags and configuration used for this staging.
+   * @param excluded relative paths that are not part of the application (generated files).
+   */
+  public static String fingerprint(File appDir, String config, Predicate<String> excluded)
+      throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(appDir.getAbsolutePath(), UTF_8).putString(config, UTF_8);
+    fingerprintDirectory(appDir, "", excluded, hasher);
+    return hasher.hash().toString();
+  }
+
+  private static void fingerprintDirectory(File dir, String prefix, Predicate<String> excluded,
+      Hasher hasher) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list directory " + dir);
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String path = prefix + file.getName();
+      if (excluded.apply(path)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        fingerprintDirectory(file, path + "/", excluded, hasher);
+      } else if (prefix.equals("WEB-INF/")) {
+        hasher.putString(path, UTF_8).putString(hash(file), UTF_8);
+      } else {
+        hasher.putString(path, UTF_8).putLong(file.length()).putLong(file.lastModified());
+      }
+    }
+  }
+
+  static String hash(File file) throws IOException {
+    return Files.hash(file, Hashing.sha1()).toString();
+  }
+
+  /**
+   * @return true if both manifests describe the same application staged with the same flags.
+   */
+  public boolean isCompatible(StagingManifest other) {
+    return other != null && appDir.equals(other.appDir) && config.equals(other.config);
+  }
+
+  /**
+   * Computes what changed from this manifest to a newer one. A file only counts as changed when
+   * its content hash differs, touching a file is not enough.
+   */
+  public Delta diff(StagingManifest newer) {
+    Delta delta = new Delta();
+    for (Map.Entry<String, Entry> entry : newer.entries.entrySet()) {
+      Entry old = entries.get(entry.getKey());
+      if (old == null) {
+        delta.added.add(entry.getKey());
+      } else if (old.size != entry.getValue().size
+          || !old.hash.equals(entry.getValue().hash)) {
+        delta.changed.add(entry.getKey());
+      }
+    }
+    for (String path : entries.keySet()) {
+      if (!newer.entries.containsKey(path)) {
+        delta.removed.add(path);
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * Reads a manifest written by {@link #write(File)}.
+   *
+   * @return the manifest, or null if the file does not exist or cannot be parsed.
+   */
+  public static StagingManifest read(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    String appDir = null;
+    String config = null;
+    Map<String, Entry> entries = new TreeMap<>();
+    Map<String, String> consumed = new TreeMap<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("#") || line.isEmpty()) {
+          continue;
+        }
+        if (line.startsWith(APP_DIR_KEY)) {
+          appDir = line.substring(APP_DIR_KEY.length());
+        } else if (line.startsWith(CONFIG_KEY)) {
+          config = line.substring(CONFIG_KEY.length());
+        } else if (line.startsWith(CONSUMED_KEY)) {
+          String[] parts = line.substring(CONSUMED_KEY.length()).split("\t", 2);
+          if (parts.length != 2) {
+            return null;
+          }
+          consumed.put(parts[1], parts[0]);
+        } else {
+          String[] parts = line.split("\t", 4);
+          if (parts.length != 4) {
+            return null;
+          }
+          entries.put(parts[3],
+              new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[0]));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      return null;
+    }
+    if (appDir == null || config == null) {
+      return null;
+    }
+    StagingManifest manifest = new StagingManifest(appDir, config, entries);
+    manifest.consumed.putAll(consumed);
+    return manifest;
+  }
+
+  /**
+   * Writes this manifest to a temporary file first, then moves it in place so that an
+   * interrupted build never leaves a truncated manifest behind.
+   */
+  public void write(File file) throws IOException {
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (Writer out = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(tmp), UTF_8))) {
+      out.write(HEADER + "\n");
+      out.write(APP_DIR_KEY + appDir + "\n");
+      out.write(CONFIG_KEY + config + "\n");
+      for (Map.Entry<String, String> entry : consumed.entrySet()) {
+        out.write(CONSUMED_KEY + entry.getValue() + "\t" + entry.getKey() + "\n");
+      }
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry e = entry.getValue();
+        out.write(e.hash + "\t" + e.size + "\t" + e.lastModified + "\t" + entry.getKey() + "\n");
+      }
+    }
+    try {
+      java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package com.google.appengine.tools.info;
 
+import com.google.appengine.SdkResolver;
 import com.google.common.base.Joiner;
 
 import java.io.File;
@@ -21,7 +22,7 @@ class ClassicSdk extends AppengineSdk {
 
   @Override
   public File getToolsApiJarFile() {
-    return new File(getSdkRoot() + "/lib/appengine-tools-api.jar");
+    return new File(extracted("lib/appengine-tools-api.jar"));
   }
 
   @Override
@@ -31,42 +32,49 @@ class ClassicSdk extends AppengineSdk {
 
   @Override
   public List<File> getUserJspLibFiles() {
+    extracted("lib/tools/jsp/");
     return SdkImplInfo.getUserJspLibFiles();
   }
 
   @Override
   public List<File> getUserLibFiles() {
+    extracted("lib/user/");
     return SdkInfo.getUserLibFiles();
   }
 
   @Override
   public List<URL> getWebApiToolsLibs() {
+    extracted("lib/opt/");
     return SdkImplInfo.getWebApiToolLibs();
   }
 
   @Override
   public List<File> getSharedJspLibFiles() {
+    extracted("lib/shared/");
     return SdkImplInfo.getSharedJspLibFiles();
   }
 
   @Override
   public List<URL> getImplLibs() {
+    extracted("lib/impl/");
     return SdkImplInfo.getImplLibs();
   }
 
   @Override
   public List<File> getSharedLibFiles() {
+    extracted("lib/shared/");
     return SdkInfo.getSharedLibFiles();
   }
 
   @Override
   public List<URL> getDatanucleusLibs() {
+    extracted("lib/opt/");
     return SdkInfo.getOptionalToolsLib("datanucleus").getURLsForVersion("v1");
   }
 
   @Override
   public String getQuickStartClasspath() {
-    File jettyDir = new File(getSdkRoot() + "/lib/java-managed-vm/appengine-java-vmruntime");
+    File jettyDir = new File(extracted("lib/java-managed-vm/appengine-java-vmruntime/"));
     File dir = new File(jettyDir, "lib");
     List<String> list = new ArrayList<>();
     list.add(new File(jettyDir, "quickstartgenerator.jar").getAbsolutePath());
@@ -97,9 +105,9 @@ class ClassicSdk extends AppengineSdk {
   public String getWebDefaultXml(String jettyVersion) {
     switch (jettyVersion) {
       case "9.2":
-        return getSdkRoot() + "/lib/jetty-base-sdk/etc/webdefault.xml";
+        return extracted("lib/jetty-base-sdk/") + "etc/webdefault.xml";
       case "9.3":
-        return getSdkRoot() + "/jetty93-base/etc/webdefault.xml";
+        return extracted("jetty93-base/") + "etc/webdefault.xml";
       default:
         throw new IllegalArgumentException("Invalid Jetty version: " + jettyVersion);
     }
@@ -109,23 +117,35 @@ class ClassicSdk extends AppengineSdk {
     return SdkInfo.getSdkRoot().getAbsolutePath();
   }
 
+  /**
+   * Makes sure a part of a lazily unpacked SDK is on disk before it is used.
+   *
+   * @param relativePath a file, or a directory ending with '/', relative to the SDK root.
+   * @return the absolute path of the file or directory.
+   */
+  private String extracted(String relativePath) {
+    SdkResolver.ensureExtracted(new File(getSdkRoot()), relativePath);
+    return getSdkRoot() + "/" + relativePath;
+  }
+
   @Override
   public File getResourcesDirectory() {
-    return new File(getSdkRoot(), "docs");
+    return new File(extracted("docs/"));
   }
 
   @Override
   public File getAgentJarFile() {
-    return new File(getSdkRoot() + "/lib/agent/appengine-agent.jar");
+    return new File(extracted("lib/agent/appengine-agent.jar"));
   }
 
   @Override
   public File getOverridesJarFile() {
-    return new File(getSdkRoot() + "/lib/override/appengine-dev-jdk-overrides.jar");
+    return new File(extracted("lib/override/appengine-dev-jdk-overrides.jar"));
   }
 
   @Override
   public List<URL> getSharedLibs() {
+    extracted("lib/shared/");
     return SdkInfo.getSharedLibs();
   }
 